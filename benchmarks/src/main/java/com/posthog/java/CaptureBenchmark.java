@@ -0,0 +1,108 @@
+package com.posthog.java;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link PostHog#capture(String, String, Map)} from one and from
+ * several threads, with batches delivered to a local stub. Run with
+ * {@code -prof gc} to see the allocation rate per event.
+ *
+ * Producers block while the queue is full, so every event is delivered and the
+ * score is the rate the senders sustain rather than that of dropping events.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CaptureBenchmark {
+    private static final String[] DISTINCT_IDS = new String[1024];
+
+    static {
+        for (int i = 0; i < DISTINCT_IDS.length; i++) {
+            DISTINCT_IDS[i] = "distinct id " + i;
+        }
+    }
+
+    /**
+     * Each producer thread cycles through the distinct ids, so events are
+     * spread over all sender workers.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        private int next;
+
+        String distinctId() {
+            return DISTINCT_IDS[next++ & (DISTINCT_IDS.length - 1)];
+        }
+    }
+
+    private StubServer server;
+    private PostHog posthog;
+    private Map<String, Object> properties;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new StubServer();
+        posthog = new PostHog.Builder("benchmark_api_key").host(server.host()).senderWorkers(4)
+                .maxInFlightBatches(4).overflowPolicy(OverflowPolicy.BLOCK)
+                .overflowBlockTimeout(Duration.ofMinutes(1)).build();
+        properties = new HashMap<String, Object>();
+        properties.put("movie_id", 123);
+        properties.put("category", "romcom");
+        properties.put("$current_url", "https://example.com/movies/123");
+    }
+
+    @TearDown
+    public void tearDown() {
+        posthog.shutdown();
+        server.shutdown();
+        if (posthog.droppedEvents() > 0) {
+            throw new IllegalStateException(posthog.droppedEvents() + " events were dropped, the score is not "
+                    + "the delivery rate");
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void captureSingleThread(Producer producer) {
+        posthog.capture(producer.distinctId(), "movie played", properties);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void captureFourThreads(Producer producer) {
+        posthog.capture(producer.distinctId(), "movie played", properties);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void captureWithEventBuilder(Producer producer) {
+        posthog.event(producer.distinctId(), "movie played").putLong("movie_id", 123)
+                .putString("category", "romcom").putString("$current_url", "https://example.com/movies/123").capture();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void captureWithoutProperties(Producer producer) {
+        posthog.capture(producer.distinctId(), "movie played");
+    }
+}
@@ -0,0 +1,64 @@
+package com.posthog.java;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of {@link PostHog#getFeatureFlag(String, String, Map)} against a
+ * local stub: a /decide request per lookup, a cached /decide response, and
+ * local evaluation of polled flag definitions.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FeatureFlagBenchmark {
+    @Param({ "decide", "cached", "local" })
+    public String source;
+
+    private StubServer server;
+    private PostHog posthog;
+    private Map<String, Object> personProperties;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new StubServer();
+        PostHog.Builder builder = new PostHog.Builder("benchmark_api_key").host(server.host());
+        if ("cached".equals(source)) {
+            builder.featureFlagsCacheTtl(Duration.ofMinutes(10));
+        } else if ("local".equals(source)) {
+            builder.personalApiKey("benchmark_personal_api_key");
+        }
+        posthog = builder.build();
+        personProperties = Collections.<String, Object>singletonMap("plan", "pro");
+    }
+
+    @TearDown
+    public void tearDown() {
+        posthog.shutdown();
+        server.shutdown();
+    }
+
+    @Benchmark
+    public String getFeatureFlag() {
+        return posthog.getFeatureFlag(StubServer.FLAG_KEY, "distinct id 1", personProperties);
+    }
+}
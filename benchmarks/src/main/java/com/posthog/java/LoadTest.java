@@ -0,0 +1,174 @@
+package com.posthog.java;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives PostHog with producer threads against a local stub /batch server
+ * with injectable latency, errors and 429s, and reports sustained throughput,
+ * delivery latency, drops and heap usage.
+ *
+ * <pre>
+ * mvn compile exec:java -Dexec.args="--threads=16 --duration=60 --latencyMs=50 --rateLimitRate=0.01"
+ * java -cp target/benchmarks.jar com.posthog.java.LoadTest --threads=16
+ * </pre>
+ *
+ * Options (defaults in brackets): threads [4], duration in seconds [30],
+ * ratePerThread in events/s, 0 for as fast as possible [0], properties per
+ * event [10], propertyLength [16], distinctIds [1000], latencyMs [20],
+ * errorRate [0], rateLimitRate [0], queueCapacity [10000], overflowPolicy
+ * [DROP_NEWEST], queueStripes [1], senderWorkers [1], maxInFlightBatches [1].
+ */
+public final class LoadTest {
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private final Map<String, String> options;
+    private final InMemoryPostHogMetrics metrics = new InMemoryPostHogMetrics();
+    private final LongAdder captured = new LongAdder();
+    private volatile boolean running = true;
+    private long peakHeapBytes;
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value: " + arg);
+            }
+            int split = arg.indexOf('=');
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        new LoadTest(options).run();
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private void run() throws IOException, InterruptedException {
+        int threads = intOption("threads", 4);
+        int duration = intOption("duration", 30);
+        StubServer server = new StubServer().latencyMillis(intOption("latencyMs", 20))
+                .errorRate(doubleOption("errorRate", 0)).rateLimitRate(doubleOption("rateLimitRate", 0));
+        PostHog posthog = new PostHog.Builder("load_test_api_key").host(server.host())
+                .queueCapacity(intOption("queueCapacity", 10000))
+                .overflowPolicy(OverflowPolicy.valueOf(options.getOrDefault("overflowPolicy", "DROP_NEWEST")))
+                .senderWorkers(intOption("senderWorkers", 1)).queueStripes(intOption("queueStripes", 1))
+                .maxInFlightBatches(intOption("maxInFlightBatches", 1)).metrics(metrics).build();
+        System.out.println("Load test with " + options + " for " + duration + "s");
+
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread producer = new Thread(() -> produce(posthog), "LoadTest producer " + i);
+            producer.start();
+            producers.add(producer);
+        }
+        long start = System.nanoTime();
+        long lastCaptured = 0;
+        long lastSent = 0;
+        for (int second = 1; second <= duration; second++) {
+            LockSupport.parkNanos(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            long heap = sampleHeap();
+            long nowCaptured = captured.sum();
+            long nowSent = metrics.eventsSent();
+            System.out.printf("%4ds  captured %8d/s  delivered %8d/s  dropped %8d  queue %6d  heap %5d MB%n", second,
+                    nowCaptured - lastCaptured, nowSent - lastSent, metrics.eventsDropped(), metrics.queueDepth(),
+                    heap >> 20);
+            lastCaptured = nowCaptured;
+            lastSent = nowSent;
+        }
+        running = false;
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        long loadNanos = System.nanoTime() - start;
+        long drainStart = System.nanoTime();
+        posthog.shutdown();
+        long drainNanos = System.nanoTime() - drainStart;
+        server.shutdown();
+        report(server, loadNanos, drainNanos);
+    }
+
+    private void produce(PostHog posthog) {
+        int properties = intOption("properties", 10);
+        int propertyLength = intOption("propertyLength", 16);
+        int distinctIds = intOption("distinctIds", 1000);
+        double ratePerThread = doubleOption("ratePerThread", 0);
+        long intervalNanos = ratePerThread > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / ratePerThread) : 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder value = new StringBuilder(propertyLength);
+        for (int i = 0; i < propertyLength; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        String propertyValue = value.toString();
+
+        long next = System.nanoTime();
+        while (running) {
+            Map<String, Object> eventProperties = new HashMap<String, Object>();
+            for (int i = 0; i < properties; i++) {
+                eventProperties.put("property_" + i, i % 2 == 0 ? propertyValue : (Object) random.nextLong());
+            }
+            posthog.capture("user " + random.nextInt(distinctIds), "load test event", eventProperties);
+            captured.increment();
+            if (intervalNanos > 0) {
+                next += intervalNanos;
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+        }
+    }
+
+    private long sampleHeap() {
+        long used = MEMORY.getHeapMemoryUsage().getUsed();
+        peakHeapBytes = Math.max(peakHeapBytes, used);
+        return used;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private void report(StubServer server, long loadNanos, long drainNanos) {
+        double seconds = loadNanos / 1e9;
+        // events still queued when the producers stop are delivered during the drain
+        double deliverySeconds = (loadNanos + drainNanos) / 1e9;
+        InMemoryPostHogMetrics.Histogram delivery = metrics.deliveryNanos();
+        InMemoryPostHogMetrics.Histogram requests = metrics.requestNanos();
+        System.out.println();
+        System.out.printf("captured            %d events (%.0f/s)%n", captured.sum(), captured.sum() / seconds);
+        System.out.printf("delivered           %d events (%.0f/s sustained)%n", metrics.eventsSent(),
+                metrics.eventsSent() / deliverySeconds);
+        System.out.printf("dropped             %d events at capture, %d in failed batches%n", metrics.eventsDropped(),
+                metrics.eventsFailed());
+        System.out.printf("batches             %d sent, %d failed, %d retries, mean %.1f events%n",
+                metrics.batchesSent(), metrics.batchesFailed(), metrics.retries(), metrics.batchSize().mean());
+        System.out.printf("stub responses      %d requests, %d errors, %d rate limited%n", server.batchRequests(),
+                server.errors(), server.rateLimited());
+        System.out.printf("delivery latency    p50 %.1f ms  p90 %.1f ms  p99 %.1f ms  max %.1f ms%n",
+                millis(delivery.percentile(50)), millis(delivery.percentile(90)), millis(delivery.percentile(99)),
+                millis(delivery.max()));
+        System.out.printf("request latency     p50 %.1f ms  p99 %.1f ms%n", millis(requests.percentile(50)),
+                millis(requests.percentile(99)));
+        System.out.printf("max queue depth     %d events%n", metrics.maxQueueDepth());
+        System.out.printf("peak heap           %d MB (sampled each second)%n", peakHeapBytes >> 20);
+        System.out.printf("drain on shutdown   %.1f ms%n", millis(drainNanos));
+        System.out.println("(latency percentiles are upper bounds, within a factor of two)");
+    }
+}
@@ -0,0 +1,102 @@
+package com.posthog.java;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of handing an already built event to {@link QueueManager#add(PostHogEvent)},
+ * uncontended and with several producers, with and without striping.
+ *
+ * Producers block while the queue is full, so the score includes handing every
+ * event to the senders instead of measuring how fast events are dropped.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueManagerBenchmark {
+    @Param({ "1", "4" })
+    public int senderWorkers;
+
+    @Param({ "1", "4" })
+    public int stripes;
+
+    /**
+     * Each producer thread cycles through events of different distinct ids, so
+     * they are spread over all sender workers.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        private int next;
+
+        PostHogEvent event(PostHogEvent[] events) {
+            return events[next++ & (events.length - 1)];
+        }
+    }
+
+    private StubServer server;
+    private QueueManager queueManager;
+    private Thread queueThread;
+    private final PostHogEvent[] events = new PostHogEvent[1024];
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new StubServer();
+        HttpSender sender = new HttpSender.Builder("benchmark_api_key").host(server.host()).build();
+        queueManager = new QueueManager.Builder(sender).senderWorkers(senderWorkers).stripes(stripes)
+                .maxInFlightBatches(4).overflowPolicy(OverflowPolicy.BLOCK).blockTimeout(Duration.ofMinutes(1))
+                .build();
+        queueThread = new Thread(queueManager, "PostHog QueueManager benchmark");
+        queueThread.start();
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("movie_id", 123);
+        for (int i = 0; i < events.length; i++) {
+            events[i] = new PostHogEvent(UUID.randomUUID(), Instant.now(), "distinct id " + i, "movie played",
+                    properties);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        queueManager.stop();
+        queueThread.join();
+        server.shutdown();
+        if (queueManager.droppedEvents() > 0) {
+            throw new IllegalStateException(queueManager.droppedEvents() + " events were dropped, the score is not "
+                    + "the delivery rate");
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean addSingleThread(Producer producer) {
+        return queueManager.add(producer.event(events));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean addFourThreads(Producer producer) {
+        return queueManager.add(producer.event(events));
+    }
+}
@@ -0,0 +1,77 @@
+package com.posthog.java;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of serializing a batch of events: streamed per event the way
+ * HttpSender does it, and through the JSONObject of each event as senders
+ * without their own serialization do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+    @Param({ "1", "50", "500" })
+    public int batchSize;
+
+    private List<PostHogEvent> events;
+
+    @Setup
+    public void setUp() {
+        events = new ArrayList<PostHogEvent>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put("movie_id", i);
+            properties.put("category", "romcom");
+            properties.put("$current_url", "https://example.com/movies/" + i);
+            events.add(new PostHogEvent(UUID.randomUUID(), Instant.now(), "distinct id " + i, "movie played",
+                    properties));
+        }
+    }
+
+    @Benchmark
+    public void streamed(Blackhole blackhole) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+        for (PostHogEvent event : events) {
+            event.writeTo(writer);
+            writer.flush();
+            blackhole.consume(buffer.toByteArray());
+            buffer.reset();
+        }
+    }
+
+    @Benchmark
+    public void viaJsonObject(Blackhole blackhole) {
+        for (PostHogEvent event : events) {
+            blackhole.consume(event.toJson().toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
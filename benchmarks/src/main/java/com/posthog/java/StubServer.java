@@ -0,0 +1,163 @@
+package com.posthog.java;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the PostHog API. By default every request is answered
+ * immediately, so benchmarks measure the client rather than the network;
+ * latency, server errors and rate limiting can be injected for load tests.
+ * Requests are not recorded, so it can run for as long as needed.
+ */
+class StubServer {
+    static final String FLAG_KEY = "benchmark-flag";
+
+    private static final byte[] DECIDE_RESPONSE = ("{\"featureFlags\": {\"" + FLAG_KEY + "\": \"variant\"},"
+            + " \"featureFlagPayloads\": {\"" + FLAG_KEY + "\": \"{\\\"key\\\": \\\"value\\\"}\"}}")
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FLAG_DEFINITIONS = ("{\"flags\": [{\"key\": \"" + FLAG_KEY + "\", \"active\": true,"
+            + " \"filters\": {\"groups\": [{\"properties\": [{\"key\": \"plan\", \"value\": \"pro\", \"type\": \"person\"}],"
+            + " \"rollout_percentage\": 100}]}}]}").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BATCH_RESPONSE = "{\"status\": 1}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMPTY = new byte[0];
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // optional
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+    private volatile double rateLimitRate;
+
+    private final LongAdder batchRequests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+
+    static {
+        // without it every response waits for the client's delayed ACK, about
+        // 40ms, and the senders spend most of a benchmark waiting on the stub
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    StubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "PostHog stub server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Delays every /batch response by latencyMillis.
+     */
+    StubServer latencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Answers this fraction (0 to 1) of /batch requests with a 500.
+     */
+    StubServer errorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Answers this fraction (0 to 1) of /batch requests with a 429 asking the
+     * client to retry after a second.
+     */
+    StubServer rateLimitRate(double rateLimitRate) {
+        this.rateLimitRate = rateLimitRate;
+        return this;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            drain(exchange.getRequestBody());
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith("/decide")) {
+                respond(exchange, 200, DECIDE_RESPONSE);
+            } else if (path.startsWith("/api/feature_flag/local_evaluation")) {
+                respond(exchange, 200, FLAG_DEFINITIONS);
+            } else {
+                handleBatch(exchange);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        batchRequests.increment();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double roll = ThreadLocalRandom.current().nextDouble();
+        if (roll < errorRate) {
+            errors.increment();
+            respond(exchange, 500, EMPTY);
+        } else if (roll < errorRate + rateLimitRate) {
+            rateLimited.increment();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 429, EMPTY);
+        } else {
+            respond(exchange, 200, BATCH_RESPONSE);
+        }
+    }
+
+    private static void drain(InputStream body) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (body.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    String host() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    long batchRequests() {
+        return batchRequests.sum();
+    }
+
+    long errors() {
+        return errors.sum();
+    }
+
+    long rateLimited() {
+        return rateLimited.sum();
+    }
+
+    void shutdown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -26,6 +26,10 @@ public final class App {
             }
         });
 
+        // the same event without building a map
+        posthog.event("distinct id 1", "movie played").putLong("movie_id", 123).putString("category", "romcom")
+                .capture();
+
         posthog.identify("distinct id 1", new HashMap<String, Object>() {
             {
                 put("email", "john@doe.com");
@@ -0,0 +1,62 @@
+package com.posthog.java;
+
+/**
+ * Adaptive limit on concurrent requests: the limit grows by one for every
+ * limit successful requests (additive increase) and is halved, with a pause,
+ * whenever the server pushes back (multiplicative decrease).
+ */
+class AimdLimiter {
+    private final int maxLimit;
+
+    private double limit;
+    private int inFlight;
+    private boolean paused;
+    // System.nanoTime() until which no new requests should start
+    private long pausedUntil;
+
+    AimdLimiter(int maxLimit) {
+        if (maxLimit <= 0) {
+            throw new IllegalArgumentException("maxLimit must be positive: " + maxLimit);
+        }
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * @return whether another request can start without exceeding the limit
+     */
+    synchronized boolean isAvailable() {
+        if (paused && System.nanoTime() - pausedUntil >= 0) {
+            paused = false;
+        }
+        return !paused && inFlight < (int) limit;
+    }
+
+    synchronized void onRequestStart() {
+        inFlight++;
+    }
+
+    synchronized void onRequestEnd() {
+        inFlight--;
+    }
+
+    synchronized void onSuccess() {
+        limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+
+    /**
+     * Halves the limit and stops new requests for pauseMillis.
+     */
+    synchronized void onPushback(long pauseMillis) {
+        limit = Math.max(1, limit / 2);
+        long until = System.nanoTime() + pauseMillis * 1_000_000;
+        if (!paused || until - pausedUntil > 0) {
+            pausedUntil = until;
+        }
+        paused = true;
+    }
+
+    synchronized int limit() {
+        return (int) limit;
+    }
+}
@@ -0,0 +1,78 @@
+package com.posthog.java;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.ByteString;
+
+/**
+ * Request body for /batch that writes the envelope and each already serialized
+ * event straight into the HTTP sink, without building the whole payload as a
+ * String first. Nothing is consumed while writing, so the body can be written
+ * again on retry.
+ */
+class BatchRequestBody extends RequestBody {
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final ByteString SEPARATOR = ByteString.encodeUtf8(",");
+    private static final ByteString SUFFIX = ByteString.encodeUtf8("]}");
+
+    private final ByteString prefix;
+    private final List<ByteString> events;
+    private final long contentLength;
+
+    BatchRequestBody(String apiKey, List<ByteString> events) {
+        this.prefix = prefix(apiKey);
+        this.events = events;
+        long length = prefix.size() + SUFFIX.size();
+        for (int i = 0; i < events.size(); i++) {
+            length += sizeIncrease(i, events.get(i).size());
+        }
+        this.contentLength = length;
+    }
+
+    private static ByteString prefix(String apiKey) {
+        return ByteString.encodeUtf8("{\"api_key\":" + JSONObject.quote(apiKey) + ",\"batch\":[");
+    }
+
+    /**
+     * @return the size in bytes of a body for the api key without any events
+     */
+    static long envelopeSize(String apiKey) {
+        return prefix(apiKey).size() + SUFFIX.size();
+    }
+
+    /**
+     * @return how many bytes adding an event of eventSize bytes to a body that
+     *         already has eventCount events adds
+     */
+    static long sizeIncrease(int eventCount, long eventSize) {
+        return eventSize + (eventCount > 0 ? SEPARATOR.size() : 0);
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.write(prefix);
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                sink.write(SEPARATOR);
+            }
+            sink.write(events.get(i));
+        }
+        sink.write(SUFFIX);
+    }
+}
@@ -0,0 +1,94 @@
+package com.posthog.java;
+
+import java.time.Duration;
+
+/**
+ * Stops requests to an API that keeps failing. After failureThreshold
+ * consecutive failures the breaker opens and requests are rejected without
+ * being made. Once probeInterval has passed a single probe request is let
+ * through (half-open): its success closes the breaker, its failure opens it
+ * for another probeInterval.
+ */
+class CircuitBreaker {
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long probeIntervalNanos;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    CircuitBreaker(int failureThreshold, Duration probeInterval) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failureThreshold must be positive: " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+        this.probeIntervalNanos = probeInterval.toNanos();
+    }
+
+    /**
+     * @return whether a request may be made now. When the probe is due this lets
+     *         exactly one caller through and moves the breaker to half-open.
+     */
+    synchronized boolean allowRequest() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.nanoTime() - openedAt >= probeIntervalNanos) {
+                state = State.HALF_OPEN;
+                return true;
+            }
+            return false;
+        case HALF_OPEN:
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return whether {@link #allowRequest()} would let a request through,
+     *         without using up the probe
+     */
+    synchronized boolean isAvailable() {
+        return state == State.CLOSED
+                || (state == State.OPEN && System.nanoTime() - openedAt >= probeIntervalNanos);
+    }
+
+    /**
+     * @return how long until {@link #allowRequest()} lets a probe through, 0
+     *         when closed. While a probe is in flight this is a full
+     *         probeInterval, its outcome isn't known yet.
+     */
+    synchronized long nanosUntilProbe() {
+        switch (state) {
+        case CLOSED:
+            return 0;
+        case OPEN:
+            return Math.max(0, probeIntervalNanos - (System.nanoTime() - openedAt));
+        case HALF_OPEN:
+        default:
+            return probeIntervalNanos;
+        }
+    }
+
+    synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    synchronized State state() {
+        return state;
+    }
+}
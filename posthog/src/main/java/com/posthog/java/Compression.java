@@ -0,0 +1,9 @@
+package com.posthog.java;
+
+/**
+ * How HttpSender encodes /batch request bodies.
+ */
+public enum Compression {
+    NONE,
+    GZIP
+}
@@ -0,0 +1,72 @@
+package com.posthog.java;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of /decide responses by distinct ID. Entries expire ttl after
+ * they were loaded, and the least recently used entry is evicted once there are
+ * more than maxEntries.
+ */
+class DecideCache {
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static class Entry {
+        final FeatureFlags flags;
+        final long loadedAt;
+
+        Entry(FeatureFlags flags, long loadedAt) {
+            this.flags = flags;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    DecideCache(Duration ttl, int maxEntries) {
+        this.ttlNanos = ttl.toNanos();
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            // qualified, inside the map Entry would be LinkedHashMap.Entry
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DecideCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the cached flags for the distinct ID, or null if there is none
+     *         or it has expired
+     */
+    FeatureFlags get(String distinctId) {
+        synchronized (entries) {
+            Entry entry = entries.get(distinctId);
+            if (entry != null && System.nanoTime() - entry.loadedAt < ttlNanos) {
+                hits.increment();
+                return entry.flags;
+            }
+            if (entry != null) {
+                entries.remove(distinctId);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(String distinctId, FeatureFlags flags) {
+        synchronized (entries) {
+            entries.put(distinctId, new Entry(flags, System.nanoTime()));
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,367 @@
+package com.posthog.java;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * Append-only spool of batches that couldn't be delivered, stored in segment
+ * files in a directory so they survive restarts. Batches are read back oldest
+ * first; segments are deleted once everything in them has been read and
+ * committed, and the oldest segments are dropped when the spool would grow
+ * beyond maxBytes.
+ *
+ * Each record is the payload length and its CRC32 followed by the payload: the
+ * number of events, then the length and JSON of each event. A torn or corrupt
+ * record ends its segment.
+ *
+ * The directory is locked while the spool is open, so that two clients never
+ * write to or replay the same segments.
+ */
+class DiskSpool {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+    private static final long MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final String LOCK_FILE = ".lock";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final PostHogLogger logger;
+
+    // oldest first, appends go to the last one while writer is open
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private FileChannel writer;
+    private long nextSegmentId;
+    private long totalBytes;
+    // how much of the first segment has been read and committed
+    private long readOffset;
+    // held on LOCK_FILE until the spool is closed
+    private FileLock lock;
+    private boolean closed;
+
+    private static class Segment {
+        final long id;
+        final Path path;
+        long size;
+
+        Segment(long id, Path path, long size) {
+            this.id = id;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A batch read from the spool, it stays in the spool until it is committed.
+     */
+    static class Batch {
+        final List<ByteString> events;
+        private final Segment segment;
+        private final long endOffset;
+
+        private Batch(List<ByteString> events, Segment segment, long endOffset) {
+            this.events = events;
+            this.segment = segment;
+            this.endOffset = endOffset;
+        }
+    }
+
+    private DiskSpool(Path directory, long maxBytes, FsyncPolicy fsyncPolicy, PostHogLogger logger) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = Math.min(Math.max(maxBytes / 8, 1), MAX_SEGMENT_BYTES);
+        this.fsyncPolicy = fsyncPolicy;
+        this.logger = logger;
+    }
+
+    /**
+     * Opens the spool in directory, creating it if needed. Segments left by a
+     * previous run are read back first.
+     *
+     * @throws IOException also if another spool, in this process or another,
+     *                     has the directory open
+     */
+    static DiskSpool open(Path directory, long maxBytes, FsyncPolicy fsyncPolicy, PostHogLogger logger)
+            throws IOException {
+        DiskSpool spool = new DiskSpool(directory, maxBytes, fsyncPolicy, logger);
+        Files.createDirectories(directory);
+        spool.lock = lock(directory);
+        List<Segment> existing = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long id = Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    existing.add(new Segment(id, file, Files.size(file)));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file in spool directory: " + file);
+                }
+            }
+        }
+        Collections.sort(existing, (a, b) -> Long.compare(a.id, b.id));
+        for (Segment segment : existing) {
+            spool.segments.addLast(segment);
+            spool.totalBytes += segment.size;
+            spool.nextSegmentId = segment.id + 1;
+        }
+        return spool;
+    }
+
+    /**
+     * Appends a batch, dropping the oldest segments if there isn't room for it.
+     *
+     * @return false if the batch alone is larger than the spool
+     */
+    synchronized boolean append(List<ByteString> events) throws IOException {
+        if (closed) {
+            // a late give-up from a retry, opening a new segment would leak it
+            throw new IOException("Spool in " + directory + " is closed");
+        }
+        Buffer payload = new Buffer();
+        payload.writeInt(events.size());
+        for (ByteString event : events) {
+            payload.writeInt(event.size());
+            payload.write(event);
+        }
+        long recordSize = HEADER_SIZE + payload.size();
+        if (recordSize > maxBytes) {
+            return false;
+        }
+
+        if (writer != null && segments.getLast().size + recordSize > segmentBytes) {
+            closeWriter();
+        }
+        while (totalBytes + recordSize > maxBytes && !segments.isEmpty()) {
+            if (segments.size() == 1) {
+                closeWriter();
+            }
+            Segment dropped = segments.getFirst();
+            logger.warn("PostHog disk spool is full, dropping " + dropped.path);
+            deleteFirstSegment();
+        }
+        if (writer == null) {
+            Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSegmentId, SEGMENT_SUFFIX));
+            writer = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            segments.addLast(new Segment(nextSegmentId++, path, 0));
+        }
+
+        CRC32 crc = new CRC32();
+        byte[] bytes = payload.readByteArray();
+        crc.update(bytes);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+        record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+        while (record.hasRemaining()) {
+            writer.write(record);
+        }
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            writer.force(false);
+        }
+        segments.getLast().size += recordSize;
+        totalBytes += recordSize;
+        return true;
+    }
+
+    /**
+     * @return the oldest batch that hasn't been committed, or null if there is
+     *         none
+     */
+    synchronized Batch peek() throws IOException {
+        while (!segments.isEmpty()) {
+            Segment head = segments.getFirst();
+            if (readOffset >= head.size) {
+                if (isWriting(head)) {
+                    return null;
+                }
+                deleteFirstSegment();
+                continue;
+            }
+            Batch batch = read(head, readOffset);
+            if (batch != null) {
+                return batch;
+            }
+            logger.warn("Skipping corrupt data at the end of " + head.path);
+            readOffset = head.size;
+        }
+        return null;
+    }
+
+    private Batch read(Segment segment, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (!readFully(channel, header, offset)) {
+                return null;
+            }
+            header.flip();
+            int length = header.getInt();
+            int expectedCrc = header.getInt();
+            if (length < 4 || offset + HEADER_SIZE + length > segment.size) {
+                return null;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            if (!readFully(channel, payload, offset + HEADER_SIZE)) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != expectedCrc) {
+                return null;
+            }
+
+            Buffer buffer = new Buffer().write(payload.array());
+            int count = buffer.readInt();
+            List<ByteString> events = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                events.add(buffer.readByteString(buffer.readInt()));
+            }
+            return new Batch(events, segment, offset + HEADER_SIZE + length);
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes a batch returned by {@link #peek()} from the spool.
+     */
+    synchronized void commit(Batch batch) throws IOException {
+        if (segments.isEmpty() || segments.getFirst() != batch.segment) {
+            // the segment was dropped to make room in the meantime
+            return;
+        }
+        readOffset = Math.max(readOffset, batch.endOffset);
+        if (readOffset >= batch.segment.size) {
+            if (isWriting(batch.segment)) {
+                closeWriter();
+            }
+            deleteFirstSegment();
+        }
+    }
+
+    /**
+     * Rewrites the oldest segment without the batches that have already been
+     * committed, so they aren't read again after a restart.
+     */
+    synchronized void compact() throws IOException {
+        if (segments.isEmpty() || readOffset == 0) {
+            return;
+        }
+        Segment head = segments.getFirst();
+        if (isWriting(head)) {
+            closeWriter();
+        }
+        Path compacted = head.path.resolveSibling(head.path.getFileName() + ".tmp");
+        try (FileChannel source = FileChannel.open(head.path, StandardOpenOption.READ);
+                FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = readOffset;
+            while (position < head.size) {
+                long transferred = source.transferTo(position, head.size - position, target);
+                if (transferred <= 0) {
+                    // the segment is shorter than we think, don't spin on it
+                    throw new IOException("Error compacting " + head.path + ", it ended at " + position);
+                }
+                position += transferred;
+            }
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                target.force(false);
+            }
+        }
+        Files.move(compacted, head.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        head.size -= readOffset;
+        totalBytes -= readOffset;
+        readOffset = 0;
+    }
+
+    /**
+     * @return how many bytes of batches are waiting in the spool
+     */
+    synchronized long sizeBytes() {
+        return totalBytes - readOffset;
+    }
+
+    synchronized boolean isEmpty() {
+        return sizeBytes() == 0;
+    }
+
+    /**
+     * Closes the current segment, compacts the spool and unlocks the directory.
+     * Appending afterwards fails.
+     */
+    synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            closeWriter();
+            compact();
+        } finally {
+            lock.channel().close();
+        }
+    }
+
+    private static FileLock lock(Path directory) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another spool in this process
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Spool directory " + directory + " is in use by another PostHog client");
+        }
+        return lock;
+    }
+
+    private boolean isWriting(Segment segment) {
+        return writer != null && segments.getLast() == segment;
+    }
+
+    private void closeWriter() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void deleteFirstSegment() throws IOException {
+        Segment segment = segments.removeFirst();
+        totalBytes -= segment.size;
+        readOffset = 0;
+        Files.deleteIfExists(segment.path);
+    }
+}
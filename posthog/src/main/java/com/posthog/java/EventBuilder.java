@@ -0,0 +1,134 @@
+package com.posthog.java;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+/**
+ * Builds an event property by property, see {@link PostHog#event(String, String)}.
+ * Properties are written to JSON as they are put, into a buffer that is reused
+ * by the next builder on the same thread once this event is captured. Putting
+ * a key twice throws an IllegalArgumentException, a JSON object can't hold the
+ * same key twice.
+ *
+ * A builder is used by one thread and for one event, it can't be used after
+ * {@link #capture()}.
+ */
+public final class EventBuilder {
+    // buffers larger than this after an event are left to the garbage collector
+    private static final int MAX_POOLED_CAPACITY = 16 * 1024;
+    // one spare buffer per thread, taken while a builder is in use
+    private static final ThreadLocal<Buffers[]> POOL = ThreadLocal.withInitial(() -> new Buffers[1]);
+
+    private static final class Buffers {
+        final StringWriter json = new StringWriter(256);
+        // keys put so far, to reject repeated ones
+        final Set<String> keys = new HashSet<String>();
+    }
+
+    private final PostHog posthog;
+    private final String distinctId;
+    private final String event;
+    private Buffers buffers;
+    private StringWriter buffer;
+    private boolean empty = true;
+
+    EventBuilder(PostHog posthog, String distinctId, String event) {
+        this.posthog = posthog;
+        this.distinctId = distinctId;
+        this.event = event;
+        Buffers[] slot = POOL.get();
+        Buffers pooled = slot[0];
+        slot[0] = null;
+        this.buffers = pooled != null ? pooled : new Buffers();
+        this.buffer = buffers.json;
+        buffer.write('{');
+    }
+
+    private StringWriter key(String key) {
+        if (buffer == null) {
+            throw new IllegalStateException("Event " + event + " has already been captured");
+        }
+        if (!buffers.keys.add(key)) {
+            throw new IllegalArgumentException("Property " + key + " has already been put");
+        }
+        if (!empty) {
+            buffer.write(',');
+        }
+        empty = false;
+        quote(key);
+        buffer.write(':');
+        return buffer;
+    }
+
+    private void quote(String value) {
+        try {
+            JSONObject.quote(value, buffer);
+        } catch (IOException e) {
+            // writing to a StringWriter does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public EventBuilder putString(String key, String value) {
+        key(key);
+        if (value == null) {
+            buffer.write("null");
+        } else {
+            quote(value);
+        }
+        return this;
+    }
+
+    public EventBuilder putLong(String key, long value) {
+        key(key).write(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value is NaN or infinite, which
+     *                                  JSON can't represent
+     */
+    public EventBuilder putDouble(String key, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON does not allow non-finite numbers: " + key + "=" + value);
+        }
+        key(key).write(Double.toString(value));
+        return this;
+    }
+
+    public EventBuilder putBoolean(String key, boolean value) {
+        key(key).write(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Adds the event to the queue, after which the builder can't be used.
+     */
+    public void capture() {
+        if (buffer == null) {
+            throw new IllegalStateException("Event " + event + " has already been captured");
+        }
+        String propertiesJson = null;
+        if (!empty) {
+            buffer.write('}');
+            propertiesJson = buffer.toString();
+        }
+        release();
+        posthog.enqueueJson(distinctId, event, propertiesJson);
+    }
+
+    private void release() {
+        StringBuffer chars = buffer.getBuffer();
+        if (chars.capacity() <= MAX_POOLED_CAPACITY) {
+            chars.setLength(0);
+            buffers.keys.clear();
+            POOL.get()[0] = buffers;
+        }
+        buffers = null;
+        buffer = null;
+    }
+}
@@ -0,0 +1,322 @@
+package com.posthog.java;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Evaluates feature flags in-process from the definitions returned by
+ * /api/feature_flag/local_evaluation, using the same hashing as the PostHog
+ * server so that a user gets the same value either way. Instances are
+ * immutable, the poller swaps in a new one whenever definitions are reloaded.
+ */
+class FeatureFlagEvaluator {
+    private static final double LONG_SCALE = 0xFFFFFFFFFFFFFFFL;
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Map<String, JSONObject> flags = new HashMap<>();
+
+    FeatureFlagEvaluator(JSONObject definitions) {
+        JSONArray flagArray = definitions.optJSONArray("flags");
+        if (flagArray != null) {
+            for (int i = 0; i < flagArray.length(); i++) {
+                JSONObject flag = flagArray.optJSONObject(i);
+                if (flag != null && flag.has("key")) {
+                    flags.put(flag.getString("key"), flag);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the flag value as /decide would report it: "true", "false" or the
+     *         variant key
+     */
+    String getFeatureFlag(String key, String distinctId, Map<String, Object> personProperties)
+            throws InconclusiveMatchException {
+        JSONObject flag = flags.get(key);
+        if (flag == null) {
+            throw new InconclusiveMatchException("Flag " + key + " is not known locally");
+        }
+        if (flag.optBoolean("ensure_experience_continuity", false)) {
+            throw new InconclusiveMatchException("Flag " + key + " has experience continuity enabled");
+        }
+        if (!flag.optBoolean("active", true)) {
+            return "false";
+        }
+        JSONObject filters = flag.optJSONObject("filters");
+        if (filters == null) {
+            filters = new JSONObject();
+        }
+        if (!filters.isNull("aggregation_group_type_index")) {
+            throw new InconclusiveMatchException("Flag " + key + " is a group flag");
+        }
+        return matchConditions(key, filters, distinctId, personProperties);
+    }
+
+    /**
+     * @return the payload of the flag for the given value, or null if it has none
+     */
+    String getFeatureFlagPayload(String key, String value) {
+        JSONObject flag = flags.get(key);
+        if (flag == null || value == null) {
+            return null;
+        }
+        JSONObject filters = flag.optJSONObject("filters");
+        JSONObject payloads = filters == null ? null : filters.optJSONObject("payloads");
+        if (payloads == null || payloads.isNull(value)) {
+            return null;
+        }
+        return payloads.get(value).toString();
+    }
+
+    private String matchConditions(String key, JSONObject filters, String distinctId,
+            Map<String, Object> personProperties) throws InconclusiveMatchException {
+        JSONArray groups = filters.optJSONArray("groups");
+        List<JSONObject> conditions = new ArrayList<>();
+        if (groups != null) {
+            for (int i = 0; i < groups.length(); i++) {
+                conditions.add(groups.getJSONObject(i));
+            }
+        }
+        // conditions with a variant override are evaluated first, the sort is stable
+        Collections.sort(conditions, (a, b) -> Boolean.compare(!hasVariant(a), !hasVariant(b)));
+
+        List<Variant> variants = variants(filters);
+        boolean inconclusive = false;
+        for (JSONObject condition : conditions) {
+            try {
+                if (matchesCondition(key, condition, distinctId, personProperties)) {
+                    String override = hasVariant(condition) ? condition.getString("variant") : null;
+                    if (override != null && containsVariant(variants, override)) {
+                        return override;
+                    }
+                    String variant = matchingVariant(key, distinctId, variants);
+                    return variant != null ? variant : "true";
+                }
+            } catch (InconclusiveMatchException e) {
+                // a later condition may still match
+                inconclusive = true;
+            }
+        }
+        if (inconclusive) {
+            throw new InconclusiveMatchException("Flag " + key + " can't be evaluated with the given properties");
+        }
+        return "false";
+    }
+
+    private static boolean hasVariant(JSONObject condition) {
+        return condition.has("variant") && !condition.isNull("variant");
+    }
+
+    private static boolean matchesCondition(String key, JSONObject condition, String distinctId,
+            Map<String, Object> personProperties) throws InconclusiveMatchException {
+        JSONArray properties = condition.optJSONArray("properties");
+        Double rolloutPercentage = condition.isNull("rollout_percentage") ? null
+                : condition.getDouble("rollout_percentage");
+
+        if (properties != null && properties.length() > 0) {
+            for (int i = 0; i < properties.length(); i++) {
+                if (!matchesProperty(properties.getJSONObject(i), personProperties)) {
+                    return false;
+                }
+            }
+            if (rolloutPercentage == null) {
+                return true;
+            }
+        }
+        return rolloutPercentage == null || hash(key, distinctId, "") <= rolloutPercentage / 100;
+    }
+
+    private static boolean matchesProperty(JSONObject property, Map<String, Object> personProperties)
+            throws InconclusiveMatchException {
+        String type = property.optString("type", "person");
+        if (!"person".equals(type)) {
+            // cohorts and group properties need data we don't have locally
+            throw new InconclusiveMatchException("Can't match " + type + " properties locally");
+        }
+        String key = property.getString("key");
+        String operator = property.optString("operator", "exact");
+        Object value = property.opt("value");
+
+        if (personProperties == null || !personProperties.containsKey(key)) {
+            throw new InconclusiveMatchException("Can't match properties without a value for " + key);
+        }
+        if ("is_not_set".equals(operator)) {
+            throw new InconclusiveMatchException("Can't match properties with operator is_not_set");
+        }
+        Object overrideValue = personProperties.get(key);
+
+        switch (operator) {
+        case "exact":
+            return exactMatch(value, overrideValue);
+        case "is_not":
+            return !exactMatch(value, overrideValue);
+        case "is_set":
+            return true;
+        case "icontains":
+            return lower(overrideValue).contains(lower(value));
+        case "not_icontains":
+            return !lower(overrideValue).contains(lower(value));
+        case "regex":
+            return regexMatch(value, overrideValue);
+        case "not_regex":
+            return isValidRegex(value) && !regexMatch(value, overrideValue);
+        case "gt":
+        case "gte":
+        case "lt":
+        case "lte":
+            return compare(overrideValue, value, operator);
+        default:
+            throw new InconclusiveMatchException("Unknown operator " + operator);
+        }
+    }
+
+    private static boolean exactMatch(Object value, Object overrideValue) {
+        if (value instanceof JSONArray) {
+            JSONArray values = (JSONArray) value;
+            for (int i = 0; i < values.length(); i++) {
+                if (lower(values.get(i)).equals(lower(overrideValue))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return lower(value).equals(lower(overrideValue));
+    }
+
+    private static String lower(Object value) {
+        return String.valueOf(value).toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isValidRegex(Object value) {
+        try {
+            Pattern.compile(String.valueOf(value));
+            return true;
+        } catch (PatternSyntaxException e) {
+            return false;
+        }
+    }
+
+    private static boolean regexMatch(Object value, Object overrideValue) {
+        if (!isValidRegex(value)) {
+            return false;
+        }
+        return Pattern.compile(String.valueOf(value)).matcher(String.valueOf(overrideValue)).find();
+    }
+
+    private static boolean compare(Object overrideValue, Object value, String operator) {
+        Double parsedValue = parseDouble(value);
+        int comparison;
+        if (parsedValue != null && overrideValue instanceof Number) {
+            comparison = Double.compare(((Number) overrideValue).doubleValue(), parsedValue);
+        } else {
+            // numbers passed as strings are compared as strings, like the server does
+            comparison = String.valueOf(overrideValue).compareTo(String.valueOf(value));
+        }
+        switch (operator) {
+        case "gt":
+            return comparison > 0;
+        case "gte":
+            return comparison >= 0;
+        case "lt":
+            return comparison < 0;
+        default:
+            return comparison <= 0;
+        }
+    }
+
+    private static Double parseDouble(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return Double.parseDouble(String.valueOf(value));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class Variant {
+        final String key;
+        final double valueMin;
+        final double valueMax;
+
+        Variant(String key, double valueMin, double valueMax) {
+            this.key = key;
+            this.valueMin = valueMin;
+            this.valueMax = valueMax;
+        }
+    }
+
+    private static List<Variant> variants(JSONObject filters) {
+        List<Variant> lookupTable = new ArrayList<>();
+        JSONObject multivariate = filters.optJSONObject("multivariate");
+        JSONArray variants = multivariate == null ? null : multivariate.optJSONArray("variants");
+        if (variants == null) {
+            return lookupTable;
+        }
+        double valueMin = 0;
+        for (int i = 0; i < variants.length(); i++) {
+            JSONObject variant = variants.getJSONObject(i);
+            double valueMax = valueMin + variant.getDouble("rollout_percentage") / 100;
+            lookupTable.add(new Variant(variant.getString("key"), valueMin, valueMax));
+            valueMin = valueMax;
+        }
+        return lookupTable;
+    }
+
+    private static boolean containsVariant(List<Variant> variants, String key) {
+        for (Variant variant : variants) {
+            if (variant.key.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String matchingVariant(String key, String distinctId, List<Variant> variants) {
+        double hash = hash(key, distinctId, "variant");
+        for (Variant variant : variants) {
+            if (hash >= variant.valueMin && hash < variant.valueMax) {
+                return variant.key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deterministic value in [0, 1] for a flag and user: the first 15 hex digits
+     * of sha1("key.distinctIdsalt") divided by 0xFFFFFFFFFFFFFFF.
+     */
+    static double hash(String key, String distinctId, String salt) {
+        MessageDigest sha1 = SHA1.get();
+        byte[] digest = sha1.digest((key + "." + distinctId + salt).getBytes(StandardCharsets.UTF_8));
+        long value = 0;
+        for (int i = 0; i < 7; i++) {
+            value = (value << 8) | (digest[i] & 0xff);
+        }
+        // the 15th hex digit is the high nibble of the 8th byte
+        value = (value << 4) | ((digest[7] & 0xff) >>> 4);
+        return value / LONG_SCALE;
+    }
+}
@@ -0,0 +1,84 @@
+package com.posthog.java;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+/**
+ * Keeps the feature flag definitions used for local evaluation up to date by
+ * reloading them in the background every pollingInterval.
+ */
+class FeatureFlagPoller {
+    private final Sender sender;
+    private final String personalApiKey;
+    private final Duration pollingInterval;
+    private final PostHogLogger logger;
+    private final ScheduledExecutorService scheduler;
+    // null until definitions have been loaded once
+    private volatile FeatureFlagEvaluator evaluator;
+
+    FeatureFlagPoller(Sender sender, String personalApiKey, Duration pollingInterval, PostHogLogger logger) {
+        this.sender = sender;
+        this.personalApiKey = personalApiKey;
+        this.pollingInterval = pollingInterval;
+        this.logger = logger;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PostHog feature flag poller thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::loadFeatureFlags, 0, pollingInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    void loadFeatureFlags() {
+        // only called from the scheduler thread, callers never wait for a load
+        try {
+            JSONObject definitions = sender.getFeatureFlagDefinitions(personalApiKey);
+            if (definitions != null) {
+                evaluator = new FeatureFlagEvaluator(definitions);
+            }
+        } catch (RuntimeException e) {
+            // keep evaluating with the previous definitions
+            logger.error("Error loading feature flag definitions", e);
+        }
+    }
+
+    /**
+     * @return whether flags can be evaluated locally, until the first background
+     *         load succeeds callers fall back to /decide
+     */
+    boolean isLoaded() {
+        return evaluator != null;
+    }
+
+    private FeatureFlagEvaluator evaluator() throws InconclusiveMatchException {
+        FeatureFlagEvaluator current = evaluator;
+        if (current == null) {
+            throw new InconclusiveMatchException("Feature flag definitions are not loaded");
+        }
+        return current;
+    }
+
+    String getFeatureFlag(String key, String distinctId, Map<String, Object> personProperties)
+            throws InconclusiveMatchException {
+        return evaluator().getFeatureFlag(key, distinctId, personProperties);
+    }
+
+    String getFeatureFlagPayload(String key, String distinctId, Map<String, Object> personProperties)
+            throws InconclusiveMatchException {
+        FeatureFlagEvaluator current = evaluator();
+        return current.getFeatureFlagPayload(key, current.getFeatureFlag(key, distinctId, personProperties));
+    }
+}
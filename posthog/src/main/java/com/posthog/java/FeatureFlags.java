@@ -0,0 +1,72 @@
+package com.posthog.java;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Immutable snapshot of all feature flags and payloads of a user, as returned by
+ * a single /decide call.
+ */
+public final class FeatureFlags {
+    static final FeatureFlags EMPTY = new FeatureFlags(Collections.<String, String>emptyMap(),
+            Collections.<String, String>emptyMap());
+
+    private final Map<String, String> flags;
+    private final Map<String, String> payloads;
+
+    private FeatureFlags(Map<String, String> flags, Map<String, String> payloads) {
+        this.flags = flags;
+        this.payloads = payloads;
+    }
+
+    static FeatureFlags fromDecideResponse(JSONObject response) {
+        return new FeatureFlags(toStringMap(response.optJSONObject("featureFlags")),
+                toStringMap(response.optJSONObject("featureFlagPayloads")));
+    }
+
+    private static Map<String, String> toStringMap(JSONObject json) {
+        if (json == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> map = new HashMap<>();
+        for (String key : json.keySet()) {
+            map.put(key, json.get(key).toString());
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @return the value of every flag by key: "true", "false" or the variant
+     */
+    public Map<String, String> getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return the payload of every flag that has one by key
+     */
+    public Map<String, String> getPayloads() {
+        return payloads;
+    }
+
+    /**
+     * @return the value of the flag, or null if it doesn't exist
+     */
+    public String getFlag(String featureFlag) {
+        return flags.get(featureFlag);
+    }
+
+    public boolean isEnabled(String featureFlag) {
+        return Boolean.parseBoolean(flags.get(featureFlag));
+    }
+
+    /**
+     * @return the payload of the flag, or null if it has none
+     */
+    public String getPayload(String featureFlag) {
+        return payloads.get(featureFlag);
+    }
+}
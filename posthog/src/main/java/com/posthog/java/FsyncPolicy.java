@@ -0,0 +1,17 @@
+package com.posthog.java;
+
+/**
+ * When batches written to the disk spool are forced to the storage device.
+ */
+public enum FsyncPolicy {
+    /**
+     * Every batch is fsynced before the write returns, so spooled events
+     * survive an operating system crash or power loss.
+     */
+    ALWAYS,
+    /**
+     * Writes are left to the operating system to flush. Spooled events survive
+     * the JVM crashing but may be lost if the machine goes down.
+     */
+    NEVER
+}
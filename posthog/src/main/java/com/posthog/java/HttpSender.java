@@ -1,26 +1,86 @@
 package com.posthog.java;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.GzipSink;
+import okio.Okio;
 
 public class HttpSender implements Sender {
+    // longest Retry-After we honor, so a bad header can't stall sending for good
+    private static final Duration MAX_RETRY_AFTER = Duration.ofMinutes(10);
+
     private final String apiKey;
     private final String host;
+    // batches and flag requests use separate connection pools and dispatchers,
+    // so slow uploads can't hold up flag lookups
     private final OkHttpClient client;
+    private final OkHttpClient flagsClient;
+    // whether the clients were created here, and so are shut down by close()
+    private final boolean ownsClient;
+    private final boolean ownsFlagsClient;
+    private final boolean ownsExecutor;
     private final int maxRetries;
     private final Duration initialRetryInterval;
     private final PostHogLogger logger;
+    private final Compression compression;
+    private final int compressionThreshold;
+    private final long maxBatchSizeBytes;
+    // retries are scheduled on this thread instead of sleeping on the sending one
+    private final ScheduledExecutorService retryScheduler;
+    // null unless a spool directory was configured
+    private final DiskSpool spool;
+    private final AtomicBoolean replayingSpool = new AtomicBoolean();
+    // shared by /batch and /decide requests, they go to the same host
+    private final CircuitBreaker circuitBreaker;
+    // adapts how many batches are sent at once to how the server copes
+    private final AimdLimiter limiter;
+    private final PostHogMetrics metrics;
+    // pending post() calls by route and distinct ID
+    private final ConcurrentHashMap<String, CompletableFuture<JSONObject>> inFlightPosts = new ConcurrentHashMap<>();
+    // how to give up on each retry waiting on retryScheduler, run by close()
+    private final Set<Runnable> pendingRetries = ConcurrentHashMap.newKeySet();
 
     public static class Builder {
         // required
@@ -36,6 +96,44 @@ public class HttpSender implements Sender {
         private Duration initialRetryInterval = Duration.ofMillis(500);
         private PostHogLogger logger = new DefaultPostHogLogger();
 
+        // optional
+        private Compression compression = Compression.NONE;
+        private int compressionThreshold = 1024; // bodies smaller than this many bytes are sent uncompressed
+
+        // optional
+        private long maxBatchSizeBytes = 5 * 1024 * 1024; // larger batches are split over several requests
+
+        // optional
+        private Path spoolDirectory;
+        private long spoolMaxBytes = 100 * 1024 * 1024;
+        private FsyncPolicy spoolFsyncPolicy = FsyncPolicy.NEVER;
+
+        // optional
+        private int circuitBreakerFailureThreshold = 5; // consecutive failed requests before the breaker opens
+        private Duration circuitBreakerProbeInterval = Duration.ofSeconds(10);
+
+        // optional
+        private int maxConcurrentBatches = 16; // upper bound of the adaptive send limit
+
+        // used instead of the connection settings below when set
+        private OkHttpClient client;
+        private OkHttpClient flagsClient;
+
+        // optional
+        private Proxy proxy; // null for the system's proxy selector
+        private Duration connectTimeout = Duration.ofSeconds(10);
+        private Duration readTimeout = Duration.ofSeconds(10);
+        private Duration writeTimeout = Duration.ofSeconds(10);
+        private Duration flagsCallTimeout = Duration.ZERO; // no limit on the whole flag request
+        private int maxIdleConnections = 5;
+        private Duration keepAliveDuration = Duration.ofMinutes(5);
+        private int maxRequestsPerHost = 5;
+        private boolean http2 = true;
+        private ExecutorService executor; // null for the default, see executor(ExecutorService)
+
+        // optional
+        private PostHogMetrics metrics = PostHogMetrics.NOOP;
+
         public Builder(String apiKey) {
             this.apiKey = apiKey;
         }
@@ -55,12 +153,179 @@ public class HttpSender implements Sender {
             return this;
         }
 
+        public Builder compression(Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder compressionThreshold(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        public Builder maxBatchSizeBytes(long maxBatchSizeBytes) {
+            this.maxBatchSizeBytes = maxBatchSizeBytes;
+            return this;
+        }
 
         public Builder logger(PostHogLogger logger) {
             this.logger = logger;
             return this;
         }
 
+        /**
+         * Batches that can't be delivered after maxRetries are written to a spool
+         * in this directory instead of being dropped, and sent again once the API
+         * is reachable, including after a restart.
+         */
+        public Builder spoolDirectory(Path spoolDirectory) {
+            this.spoolDirectory = spoolDirectory;
+            return this;
+        }
+
+        /**
+         * Maximum disk space used by the spool, the oldest batches are dropped
+         * beyond that.
+         */
+        public Builder spoolMaxBytes(long spoolMaxBytes) {
+            this.spoolMaxBytes = spoolMaxBytes;
+            return this;
+        }
+
+        public Builder spoolFsyncPolicy(FsyncPolicy spoolFsyncPolicy) {
+            this.spoolFsyncPolicy = spoolFsyncPolicy;
+            return this;
+        }
+
+        /**
+         * After this many consecutive failed requests no more requests are made
+         * until a probe request succeeds. Meanwhile events stay queued and flag
+         * lookups return their defaults.
+         */
+        public Builder circuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+            this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+            return this;
+        }
+
+        /**
+         * How long the circuit breaker stays open before a probe request is let
+         * through.
+         */
+        public Builder circuitBreakerProbeInterval(Duration circuitBreakerProbeInterval) {
+            this.circuitBreakerProbeInterval = circuitBreakerProbeInterval;
+            return this;
+        }
+
+        /**
+         * Upper bound on batches sent at once. The actual limit adapts: it is
+         * halved whenever the server responds with 429 or 503 and grows back
+         * while batches succeed.
+         */
+        public Builder maxConcurrentBatches(int maxConcurrentBatches) {
+            this.maxConcurrentBatches = maxConcurrentBatches;
+            return this;
+        }
+
+        /**
+         * Client used to send batches, the connection settings of this builder
+         * are ignored when it is set. Unless a flags client is set too, flag
+         * requests use a copy of it with its own connection pool and dispatcher.
+         * Not public, OkHttp is relocated in the published jar so callers could
+         * not build one.
+         */
+        Builder client(OkHttpClient client) {
+            this.client = client;
+            return this;
+        }
+
+        /**
+         * Client used for /decide and flag definition requests.
+         */
+        Builder flagsClient(OkHttpClient flagsClient) {
+            this.flagsClient = flagsClient;
+            return this;
+        }
+
+        /**
+         * Proxy for batch and flag requests. By default the JVM's
+         * {@link java.net.ProxySelector} decides.
+         */
+        public Builder proxy(Proxy proxy) {
+            this.proxy = proxy;
+            return this;
+        }
+
+        public Builder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public Builder readTimeout(Duration readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        public Builder writeTimeout(Duration writeTimeout) {
+            this.writeTimeout = writeTimeout;
+            return this;
+        }
+
+        /**
+         * Limit on the whole of a flag request, including connecting and reading
+         * the response. Zero means no limit.
+         */
+        public Builder flagsCallTimeout(Duration flagsCallTimeout) {
+            this.flagsCallTimeout = flagsCallTimeout;
+            return this;
+        }
+
+        /**
+         * Idle connections kept open in each connection pool, one for batches and
+         * one for flag requests.
+         */
+        public Builder maxIdleConnections(int maxIdleConnections) {
+            this.maxIdleConnections = maxIdleConnections;
+            return this;
+        }
+
+        public Builder keepAliveDuration(Duration keepAliveDuration) {
+            this.keepAliveDuration = keepAliveDuration;
+            return this;
+        }
+
+        /**
+         * Concurrent asynchronous requests to the host allowed by each client.
+         */
+        public Builder maxRequestsPerHost(int maxRequestsPerHost) {
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        /**
+         * Whether HTTP/2 may be negotiated with the host, otherwise only
+         * HTTP/1.1 is used.
+         */
+        public Builder http2(boolean http2) {
+            this.http2 = http2;
+            return this;
+        }
+
+        /**
+         * Runs the HTTP calls, which block while waiting on the server. Applies
+         * to the clients this builder creates, not to a supplied client. By
+         * default OkHttp's own thread pool is used, or virtual threads on Java
+         * 21 and newer.
+         */
+        public Builder executor(ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder metrics(PostHogMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
         public HttpSender build() {
             return new HttpSender(this);
         }
@@ -72,94 +337,659 @@ public class HttpSender implements Sender {
         this.maxRetries = builder.maxRetries;
         this.initialRetryInterval = builder.initialRetryInterval;
         this.logger = builder.logger;
-        this.client = new OkHttpClient();
+        this.compression = builder.compression;
+        this.compressionThreshold = builder.compressionThreshold;
+        this.maxBatchSizeBytes = builder.maxBatchSizeBytes;
+        this.metrics = builder.metrics;
+        this.ownsClient = builder.client == null;
+        this.ownsFlagsClient = builder.flagsClient == null;
+        this.ownsExecutor = builder.executor == null;
+        // the default executor is only created when this sender builds a client,
+        // it is shut down with the clients on close
+        ExecutorService executor = builder.executor;
+        if (executor == null && (ownsClient || ownsFlagsClient)) {
+            executor = Threads.defaultSenderExecutor();
+        }
+        this.client = builder.client != null ? builder.client : newClient(builder, executor).build();
+        if (builder.flagsClient != null) {
+            this.flagsClient = builder.flagsClient;
+        } else if (builder.client != null) {
+            this.flagsClient = withOwnConnections(builder.client.newBuilder(), builder, executor).build();
+        } else {
+            this.flagsClient = newClient(builder, executor).callTimeout(builder.flagsCallTimeout).build();
+        }
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PostHog HttpSender retry thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.circuitBreaker = new CircuitBreaker(builder.circuitBreakerFailureThreshold,
+                builder.circuitBreakerProbeInterval);
+        this.limiter = new AimdLimiter(builder.maxConcurrentBatches);
+        this.spool = openSpool(builder);
+        // send whatever a previous run left behind
+        replaySpool();
+    }
+
+    private static OkHttpClient.Builder newClient(Builder builder, ExecutorService executor) {
+        OkHttpClient.Builder client = new OkHttpClient.Builder()
+                .connectTimeout(builder.connectTimeout)
+                .readTimeout(builder.readTimeout)
+                .writeTimeout(builder.writeTimeout);
+        if (builder.proxy != null) {
+            client.proxy(builder.proxy);
+        }
+        if (!builder.http2) {
+            client.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+        }
+        return withOwnConnections(client, builder, executor);
+    }
+
+    /**
+     * @param executor runs the calls, null for OkHttp's own thread pool
+     */
+    private static OkHttpClient.Builder withOwnConnections(OkHttpClient.Builder client, Builder builder,
+            ExecutorService executor) {
+        Dispatcher dispatcher = executor != null ? new Dispatcher(executor) : new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(builder.maxRequestsPerHost);
+        return client.dispatcher(dispatcher).connectionPool(new ConnectionPool(builder.maxIdleConnections,
+                builder.keepAliveDuration.toMillis(), TimeUnit.MILLISECONDS));
+    }
+
+    private DiskSpool openSpool(Builder builder) {
+        if (builder.spoolDirectory == null) {
+            return null;
+        }
+        try {
+            return DiskSpool.open(builder.spoolDirectory, builder.spoolMaxBytes, builder.spoolFsyncPolicy, logger);
+        } catch (IOException e) {
+            logger.error("Error opening spool directory " + builder.spoolDirectory + ", undeliverable events will be dropped", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stops the retry thread, closes the spool and releases the threads and
+     * connections of the clients this sender created. Supplied clients are left
+     * alone. Batches still waiting for a retry are spooled without another
+     * attempt, or dropped if there is no spool.
+     */
+    @Override
+    public void close() {
+        retryScheduler.shutdownNow();
+        for (Runnable giveUp : pendingRetries) {
+            if (pendingRetries.remove(giveUp)) {
+                giveUp.run();
+            }
+        }
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                logger.error("Error closing the spool", e);
+            }
+        }
+        if (ownsClient) {
+            release(client);
+        }
+        if (ownsFlagsClient) {
+            release(flagsClient);
+        }
+    }
+
+    private void release(OkHttpClient client) {
+        // idle dispatcher threads would otherwise keep the JVM alive for a minute,
+        // a supplied executor is left running
+        if (ownsExecutor) {
+            client.dispatcher().executorService().shutdown();
+        }
+        client.connectionPool().evictAll();
+    }
+
+    /**
+     * @return false while the circuit breaker is open, see
+     *         {@link Builder#circuitBreakerFailureThreshold(int)}, or while the
+     *         server has asked us to slow down, see
+     *         {@link Builder#maxConcurrentBatches(int)}
+     */
+    @Override
+    public boolean isAvailable() {
+        return circuitBreaker.isAvailable() && limiter.isAvailable();
     }
 
     public Boolean send(List<JSONObject> events) {
-        if (events == null || events.isEmpty()) {
+        if (events == null) {
             return null;
         }
-        String json = getRequestBody(events);
-        Response response = null;
-        int retries = 0;
+        return sendEvents(PostHogEvent.fromJson(events));
+    }
 
-        MediaType JSON = MediaType.parse("application/json; charset=utf-8");
-        RequestBody body = RequestBody.create(json, JSON);
+    @Override
+    public CompletableFuture<Boolean> sendAsync(List<JSONObject> events) {
+        if (events == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return sendEventsAsync(PostHogEvent.fromJson(events));
+    }
+
+    @Override
+    public Boolean sendEvents(List<PostHogEvent> events) {
+        try {
+            return sendEventsAsync(events).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while sending events to PostHog", e);
+            return false;
+        } catch (ExecutionException e) {
+            logger.error("Error sending events to PostHog", e.getCause());
+            return false;
+        }
+    }
 
-        while (true) {
-            Request request = new Request.Builder().url(host + "/batch").post(body).build();
-            Call call = client.newCall(request);
+    @Override
+    public CompletableFuture<Boolean> sendEventsAsync(List<PostHogEvent> events) {
+        if (events == null || events.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<ByteString> serialized = serialize(events);
+        if (serialized.isEmpty()) {
+            return CompletableFuture.completedFuture(false);
+        }
 
-            try {
-                response = call.execute();
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (List<ByteString> batch : split(serialized)) {
+            results.add(sendBatch(batch, this::spoolEvents));
+        }
+        return allSucceeded(results);
+    }
 
-                if (response.isSuccessful()) {
-                    // On 2xx status codes, the request was successful so we return and assume
-                    // events have been successfully ingested by PostHog.
-                    return true;
+    /**
+     * Writes the events to the spool, if one is configured, to be sent once the
+     * next client starts.
+     */
+    @Override
+    public boolean spool(List<PostHogEvent> events) {
+        if (spool == null || events.isEmpty()) {
+            return false;
+        }
+        boolean spooled = true;
+        for (List<ByteString> batch : split(serialize(events))) {
+            spooled &= spoolEvents(batch);
+        }
+        return spooled;
+    }
+
+    /**
+     * Splits the events into batches of at most maxBatchSizeBytes, a single
+     * event larger than that still gets a batch of its own.
+     */
+    private List<List<ByteString>> split(List<ByteString> events) {
+        List<List<ByteString>> batches = new ArrayList<>();
+        List<ByteString> batch = new ArrayList<>();
+        long batchSize = BatchRequestBody.envelopeSize(apiKey);
+        for (ByteString event : events) {
+            long increase = BatchRequestBody.sizeIncrease(batch.size(), event.size());
+            if (!batch.isEmpty() && batchSize + increase > maxBatchSizeBytes) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchSize = BatchRequestBody.envelopeSize(apiKey);
+                increase = BatchRequestBody.sizeIncrease(0, event.size());
+            }
+            batch.add(event);
+            batchSize += increase;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private List<ByteString> serialize(List<PostHogEvent> events) {
+        // each event is serialized once, the bytes are then reused for sizing,
+        // for every attempt and when a batch has to be split
+        long start = System.nanoTime();
+        long bytes = 0;
+        List<ByteString> serialized = new ArrayList<>(events.size());
+        Buffer buffer = new Buffer();
+        Writer writer = new OutputStreamWriter(buffer.outputStream(), StandardCharsets.UTF_8);
+        for (PostHogEvent event : events) {
+            try {
+                event.writeTo(writer);
+                writer.flush();
+                ByteString eventBytes = buffer.readByteString();
+                bytes += eventBytes.size();
+                serialized.add(eventBytes);
+            } catch (IOException | RuntimeException e) {
+                // e.g. a property map changed by another thread while it was written
+                logger.error("Error serializing event, it will not be sent", e);
+                // discard whatever was written of the event, including what is
+                // still buffered in the writer
+                try {
+                    writer.flush();
+                } catch (IOException ignored) {
+                    // writing to an in-memory buffer does not fail
                 }
+                buffer.clear();
+            }
+        }
+        metrics.batchSerialized(serialized.size(), bytes, System.nanoTime() - start);
+        return serialized;
+    }
 
-                // On 4xx status codes, the request was unsuccessful, so we
-                // return and assume events have not been ingested by PostHog.
-                if (response.code() >= 400 && response.code() < 500) {
-                    // Make sure we log that we are giving up specifically
-                    // because of a Http Client error.
-                    System.out.println("Giving up on sending events to PostHog because of a HTTP Client error.");
+    private static CompletableFuture<Boolean> allSucceeded(List<CompletableFuture<Boolean>> results) {
+        if (results.size() == 1) {
+            return results.get(0);
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            for (CompletableFuture<Boolean> result : results) {
+                if (!Boolean.TRUE.equals(result.join())) {
                     return false;
                 }
-            } catch (IOException e) {
+            }
+            return true;
+        });
+    }
+
+    /**
+     * @param undeliverable called with the events that could not be sent but may
+     *                      succeed later, once retries are exhausted or while
+     *                      the circuit breaker is open
+     */
+    private CompletableFuture<Boolean> sendBatch(List<ByteString> events,
+            Consumer<List<ByteString>> undeliverable) {
+        if (events.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> result = attemptBatch(events, undeliverable);
+        result.whenComplete((sent, error) -> {
+            if (Boolean.TRUE.equals(sent)) {
+                metrics.batchSent(events.size(), System.nanoTime() - start);
+            } else {
+                metrics.batchFailed(events.size());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Like {@link #sendBatch(List, Consumer)}, without recording the batch in the metrics,
+     * for the halves of a batch that was too large.
+     */
+    private CompletableFuture<Boolean> attemptBatch(List<ByteString> events,
+            Consumer<List<ByteString>> undeliverable) {
+        BatchRequestBody body = new BatchRequestBody(apiKey, events);
+        Request.Builder requestBuilder = new Request.Builder().url(host + "/batch");
+        if (compression == Compression.GZIP && body.contentLength() >= compressionThreshold) {
+            requestBuilder.header("Content-Encoding", "gzip").post(gzip(body));
+        } else {
+            requestBuilder.post(body);
+        }
+        // the body only reads the serialized events, so the same request can be
+        // replayed on retry
+        Request request = requestBuilder.build();
+
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        limiter.onRequestStart();
+        result.whenComplete((sent, error) -> limiter.onRequestEnd());
+        sendAttempt(request, events, 0, undeliverable, result);
+        return result;
+    }
+
+    private static RequestBody gzip(RequestBody body) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return body.contentType();
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+                body.writeTo(gzipSink);
+                gzipSink.close();
+            }
+        };
+    }
+
+    private void sendAttempt(Request request, List<ByteString> events, int retries,
+            Consumer<List<ByteString>> undeliverable, CompletableFuture<Boolean> result) {
+        if (!circuitBreaker.allowRequest()) {
+            if (retries > 0) {
+                // a retry that came due while the breaker is open waits for the
+                // probe rather than using up the batch's remaining retries,
+                // rounded up so it doesn't come back just before the probe is due
+                long untilProbe = TimeUnit.NANOSECONDS.toMillis(circuitBreaker.nanosUntilProbe()) + 1;
+                scheduleAttempt(request, events, retries, untilProbe, undeliverable, result);
+                return;
+            }
+            logger.debug("PostHog API unavailable, not sending batch of " + events.size() + " events.");
+            undeliverable.accept(events);
+            result.complete(false);
+            return;
+        }
+        Call call = client.newCall(request);
+        long start = System.nanoTime();
+
+        call.enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, Response response) {
+                metrics.requestCompleted("/batch", response.code(), System.nanoTime() - start);
+                long retryAfter = 0;
+                try {
+                    // any response below 500 shows the API is up, even if it rejected the batch
+                    if (response.code() >= 500) {
+                        circuitBreaker.recordFailure();
+                    } else {
+                        circuitBreaker.recordSuccess();
+                    }
+                    if (response.isSuccessful()) {
+                        // On 2xx status codes, the request was successful so we return and assume
+                        // events have been successfully ingested by PostHog.
+                        limiter.onSuccess();
+                        result.complete(true);
+                        replaySpool();
+                        return;
+                    }
+
+                    // The server is overloaded or rate limiting us: back off for as
+                    // long as it asks, and send less until it recovers.
+                    if (response.code() == 429 || response.code() == 503) {
+                        retryAfter = retryAfterMillis(response);
+                        limiter.onPushback(Math.max(retryAfter, initialRetryInterval.toMillis()));
+                        logger.debug("PostHog API pushed back with " + response.code() + ", send limit is now "
+                                + limiter.limit() + ".");
+                    }
+
+                    // The batch is too large for the server, send each half on its
+                    // own. A single event that is too large can never be sent.
+                    if (response.code() == 413 && events.size() > 1) {
+                        int half = events.size() / 2;
+                        logger.debug("Batch of " + events.size() + " events too large, splitting it in two.");
+                        List<CompletableFuture<Boolean>> halves = new ArrayList<>();
+                        halves.add(attemptBatch(events.subList(0, half), undeliverable));
+                        halves.add(attemptBatch(events.subList(half, events.size()), undeliverable));
+                        allSucceeded(halves).thenAccept(result::complete);
+                        return;
+                    }
+
+                    // On 4xx status codes, the request was unsuccessful, so we
+                    // return and assume events have not been ingested by PostHog.
+                    if (response.code() >= 400 && response.code() < 500 && response.code() != 429) {
+                        // Make sure we log that we are giving up specifically
+                        // because of a Http Client error.
+                        System.out.println("Giving up on sending events to PostHog because of a HTTP Client error.");
+                        result.complete(false);
+                        return;
+                    }
+                } finally {
+                    // must always close an OkHTTP response
+                    // https://square.github.io/okhttp/4.x/okhttp/okhttp3/-call/enqueue/
+                    response.close();
+                }
+                retryOrGiveUp(request, events, retries + 1, retryAfter, undeliverable, result);
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
                 // TODO: verify if we need to retry on IOException, this may
                 // already be handled by OkHTTP. See
                 // https://square.github.io/okhttp/4.x/okhttp/okhttp3/-ok-http-client/-builder/retry-on-connection-failure/
+                metrics.requestCompleted("/batch", -1, System.nanoTime() - start);
                 logger.error("Error sending events to PostHog", e);
-            } finally {
-                // must always close an OkHTTP response
-                // https://square.github.io/okhttp/4.x/okhttp/okhttp3/-call/execute/
-                if (response != null) {
-                    response.close();
-                }
+                circuitBreaker.recordFailure();
+                retryOrGiveUp(request, events, retries + 1, 0, undeliverable, result);
             }
+        });
+    }
+
+    /**
+     * @param retryAfter minimum wait in milliseconds asked for by the server, 0
+     *                   if it didn't ask for any
+     */
+    private void retryOrGiveUp(Request request, List<ByteString> events, int retries, long retryAfter,
+            Consumer<List<ByteString>> undeliverable, CompletableFuture<Boolean> result) {
+        if (retries > maxRetries) {
+            // Make sure to shout very loudly if we have reached the end of
+            // our retries and haven't managed to send events.
+            System.out.println("Giving up on sending events to PostHog after " + retries + " retries.");
+            undeliverable.accept(events);
+            result.complete(false);
+            return;
+        }
 
-            retries += 1;
+        // exponential backoff with jitter, so batches that failed together don't
+        // all retry at the same moment, but never sooner than the server asked
+        long backoff = initialRetryInterval.toMillis() * (long) Math.pow(3, retries);
+        long jittered = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        long retryInterval = Math.max(jittered, retryAfter);
 
-            if (retries > maxRetries) {
-                // Make sure to shout very loudly if we have reached the end of
-                // our retries and haven't managed to send events.
-                System.out.println("Giving up on sending events to PostHog after " + retries + " retries.");
-                return false;
-            }
+        // On retries, make sure we log the response code or exception such
+        // that people will know if something is up, ensuring we include the
+        // retry count and how long we will wait before retrying.
+        logger.debug("Retrying sending events to PostHog after " + retries + " retries. Waiting for "
+                + retryInterval + "ms before retrying.");
 
-            long retryInterval = initialRetryInterval.toMillis() * (long) Math.pow(3, retries);
+        if (scheduleAttempt(request, events, retries, retryInterval, undeliverable, result)) {
+            metrics.retryScheduled();
+        }
+    }
 
-            // On retries, make sure we log the response code or exception such
-            // that people will know if something is up, ensuring we include the
-            // retry count and how long we will wait before retrying.
-            logger.debug("Retrying sending events to PostHog after " + retries + " retries. Waiting for "
-                    + retryInterval + "ms before retrying.");
+    /**
+     * Schedules the attempt rather than sleeping on it, so that no thread is
+     * held while we wait.
+     *
+     * @return false if the sender is closed and the events were given up on
+     */
+    private boolean scheduleAttempt(Request request, List<ByteString> events, int retries, long delayMillis,
+            Consumer<List<ByteString>> undeliverable, CompletableFuture<Boolean> result) {
+        Runnable giveUp = () -> {
+            undeliverable.accept(events);
+            result.complete(false);
+        };
+        pendingRetries.add(giveUp);
+        try {
+            retryScheduler.schedule(() -> {
+                // close() may have given up on it already
+                if (pendingRetries.remove(giveUp)) {
+                    sendAttempt(request, events, retries, undeliverable, result);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.error("Error scheduling retry of events to PostHog", e);
+            if (pendingRetries.remove(giveUp)) {
+                giveUp.run();
+            }
+            return false;
+        }
+    }
 
+    /**
+     * @return the wait asked for by the Retry-After header in milliseconds, in
+     *         seconds or as an HTTP date, capped at MAX_RETRY_AFTER. 0 if there
+     *         is no valid header.
+     */
+    static long retryAfterMillis(Response response) {
+        String value = response.header("Retry-After");
+        if (value == null) {
+            return 0;
+        }
+        long millis;
+        try {
+            millis = Long.parseLong(value.trim()) * 1000;
+        } catch (NumberFormatException e) {
             try {
-                // TODO: use the Retry-After header if present to determine the retry interval.
-                // For now we use a fixed initial retry interval, falling back exponentially.
-                // TODO this is a blocking sleep, we should use `Future`s here instead
-                Thread.sleep(retryInterval);
-            } catch (Exception e) {
-                logger.error("Error sending events to PostHog", e);
+                ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                millis = Duration.between(Instant.now(), date.toInstant()).toMillis();
+            } catch (DateTimeParseException e2) {
+                return 0;
             }
         }
+        return Math.max(0, Math.min(millis, MAX_RETRY_AFTER.toMillis()));
     }
 
-    private String getRequestBody(List<JSONObject> events) {
-        JSONObject jsonObject = new JSONObject();
+    private boolean spoolEvents(List<ByteString> events) {
+        if (spool == null) {
+            return false;
+        }
         try {
-            jsonObject.put("api_key", apiKey);
-            jsonObject.put("batch", events);
-        } catch (JSONException e) {
-            logger.error("Error creating event JSON", e);
+            if (spool.append(events)) {
+                return true;
+            }
+            logger.error("Batch of " + events.size() + " events is larger than the spool, dropping it");
+        } catch (IOException e) {
+            logger.error("Error writing " + events.size() + " events to the spool, dropping them", e);
         }
-        return jsonObject.toString();
+        return false;
     }
 
+    /**
+     * Sends the spooled batches one at a time, oldest first, until the spool is
+     * empty or a batch fails again. A batch that fails again stays at the head
+     * of the spool and is replayed after the next successful send, so spooled
+     * events keep their order. Batches the API rejects are removed.
+     */
+    private void replaySpool() {
+        if (spool == null || spool.isEmpty() || !replayingSpool.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            retryScheduler.execute(this::replayNextSpooledBatch);
+        } catch (RejectedExecutionException e) {
+            replayingSpool.set(false);
+        }
+    }
+
+    private void replayNextSpooledBatch() {
+        DiskSpool.Batch batch;
+        try {
+            batch = spool.peek();
+        } catch (IOException e) {
+            logger.error("Error reading the spool", e);
+            replayingSpool.set(false);
+            return;
+        }
+        if (batch == null) {
+            replayingSpool.set(false);
+            return;
+        }
+        AtomicBoolean keep = new AtomicBoolean();
+        sendBatch(batch.events, events -> keep.set(true)).whenComplete((sent, error) -> {
+            try {
+                if (!keep.get()) {
+                    // delivered or rejected, either way it is done with
+                    spool.commit(batch);
+                    retryScheduler.execute(this::replayNextSpooledBatch);
+                    return;
+                }
+                // don't read the delivered batches again after a restart
+                spool.compact();
+            } catch (IOException | RejectedExecutionException e) {
+                logger.error("Error replaying the spool", e);
+            }
+            replayingSpool.set(false);
+        });
+    }
+
+    /**
+     * Concurrent calls for the same route and distinct ID share a single request
+     * and get the same response object, which must not be modified.
+     */
     public JSONObject post(String route, String distinctId) {
+        String key = route + "\n" + distinctId;
+        CompletableFuture<JSONObject> pending = new CompletableFuture<>();
+        CompletableFuture<JSONObject> inFlight = inFlightPosts.putIfAbsent(key, pending);
+        if (inFlight != null) {
+            return inFlight.join();
+        }
+        if (!circuitBreaker.allowRequest()) {
+            // fail fast, callers fall back to their defaults
+            inFlightPosts.remove(key, pending);
+            pending.complete(null);
+            return null;
+        }
+
+        Response response = null;
+        long start = System.nanoTime();
+        try {
+            response = flagsClient.newCall(postRequest(route, distinctId)).execute();
+            metrics.requestCompleted(route, response.code(), System.nanoTime() - start);
+            JSONObject result = readPostResponse(response);
+            pending.complete(result);
+            return result;
+        } catch (IOException e) {
+            if (response == null) {
+                metrics.requestCompleted(route, -1, System.nanoTime() - start);
+            }
+            logger.error("Error calling API", e);
+            circuitBreaker.recordFailure();
+            pending.complete(null);
+            return null;
+        } catch (RuntimeException e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightPosts.remove(key, pending);
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    /**
+     * Like {@link #post(String, String)}, but the request is made on OkHttp's
+     * dispatcher threads and the returned future is completed from there.
+     */
+    @Override
+    public CompletableFuture<JSONObject> postAsync(String route, String distinctId) {
+        String key = route + "\n" + distinctId;
+        CompletableFuture<JSONObject> pending = new CompletableFuture<>();
+        CompletableFuture<JSONObject> inFlight = inFlightPosts.putIfAbsent(key, pending);
+        if (inFlight != null) {
+            return inFlight;
+        }
+        if (!circuitBreaker.allowRequest()) {
+            inFlightPosts.remove(key, pending);
+            pending.complete(null);
+            return pending;
+        }
+
+        long start = System.nanoTime();
+        flagsClient.newCall(postRequest(route, distinctId)).enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, Response response) {
+                metrics.requestCompleted(route, response.code(), System.nanoTime() - start);
+                try {
+                    JSONObject result = readPostResponse(response);
+                    inFlightPosts.remove(key, pending);
+                    pending.complete(result);
+                } catch (IOException e) {
+                    logger.error("Error calling API", e);
+                    circuitBreaker.recordFailure();
+                    inFlightPosts.remove(key, pending);
+                    pending.complete(null);
+                } catch (RuntimeException e) {
+                    inFlightPosts.remove(key, pending);
+                    pending.completeExceptionally(e);
+                } finally {
+                    response.close();
+                }
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                metrics.requestCompleted(route, -1, System.nanoTime() - start);
+                logger.error("Error calling API", e);
+                circuitBreaker.recordFailure();
+                inFlightPosts.remove(key, pending);
+                pending.complete(null);
+            }
+        });
+        return pending;
+    }
+
+    private Request postRequest(String route, String distinctId) {
         JSONObject bodyJSON = new JSONObject();
         try {
             bodyJSON.put("api_key", apiKey);
@@ -168,26 +998,63 @@ public class HttpSender implements Sender {
             logger.error("Error creating event JSON", e);
         }
 
-        Response response = null;
-
         MediaType JSON = MediaType.parse("application/json; charset=utf-8");
         RequestBody body = RequestBody.create(bodyJSON.toString(), JSON);
-        Request request = new Request.Builder().url(host + route).post(body).build();
-        Call call = client.newCall(request);
+        return new Request.Builder().url(host + route).post(body).build();
+    }
+
+    private JSONObject readPostResponse(Response response) throws IOException {
+        if (response.code() >= 500) {
+            circuitBreaker.recordFailure();
+            return null;
+        }
+        circuitBreaker.recordSuccess();
+        if (response.isSuccessful()) {
+            return new JSONObject(response.body().string());
+        }
 
+        if (response.code() >= 400 && response.code() < 500) {
+            logger.error("Error calling API: " + response.body().string());
+        }
+        return null;
+    }
+
+    @Override
+    public JSONObject getFeatureFlagDefinitions(String personalApiKey) {
+        HttpUrl url = HttpUrl.parse(host + "/api/feature_flag/local_evaluation/");
+        if (url == null) {
+            logger.error("Invalid host " + host);
+            return null;
+        }
+        Request request = new Request.Builder()
+                .url(url.newBuilder().addQueryParameter("token", apiKey).build())
+                .header("Authorization", "Bearer " + personalApiKey)
+                .get()
+                .build();
+        if (!circuitBreaker.allowRequest()) {
+            // the poller keeps the previous definitions and tries again later
+            return null;
+        }
+
+        Response response = null;
         try {
-            response = call.execute();
+            response = flagsClient.newCall(request).execute();
+            if (response.code() >= 500) {
+                circuitBreaker.recordFailure();
+            } else {
+                circuitBreaker.recordSuccess();
+            }
 
             if (response.isSuccessful()) {
                 return new JSONObject(response.body().string());
             }
-
-            if (response.code() >= 400 && response.code() < 500) {
-                logger.error("Error calling API: " + response.body().string());
-                return null;
-            }
+            logger.error("Error loading feature flag definitions: " + response.code() + " "
+                    + response.body().string());
         } catch (IOException e) {
-            logger.error("Error calling API", e);
+            logger.error("Error loading feature flag definitions", e);
+            circuitBreaker.recordFailure();
+        } catch (JSONException e) {
+            logger.error("Error loading feature flag definitions", e);
         } finally {
             if (response != null) {
                 response.close();
@@ -0,0 +1,24 @@
+package com.posthog.java;
+
+import java.util.UUID;
+
+/**
+ * Generates the uuid of each captured event, which PostHog uses to deduplicate
+ * events that were delivered more than once. Called on the capturing thread,
+ * so it must be fast and thread safe.
+ */
+public interface IdGenerator {
+    /**
+     * Time-ordered version 7 UUIDs from thread-local randomness, the default.
+     * Consecutive ids share a prefix, which keeps them cheap to index.
+     */
+    public static final IdGenerator UUID_V7 = new UuidV7Generator();
+
+    /**
+     * Version 4 UUIDs from {@link UUID#randomUUID()}, which shares one
+     * SecureRandom between all threads.
+     */
+    public static final IdGenerator RANDOM = UUID::randomUUID;
+
+    public UUID generate();
+}
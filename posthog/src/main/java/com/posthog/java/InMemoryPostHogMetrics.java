@@ -0,0 +1,220 @@
+package com.posthog.java;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps counters and latency histograms in memory, for reading from a
+ * scheduled reporter or a health endpoint. Recording is lock-free.
+ */
+public class InMemoryPostHogMetrics implements PostHogMetrics {
+    private final LongAdder eventsEnqueued = new LongAdder();
+    private final LongAdder eventsDropped = new LongAdder();
+    private final LongAdder batchesSent = new LongAdder();
+    private final LongAdder eventsSent = new LongAdder();
+    private final LongAdder batchesFailed = new LongAdder();
+    private final LongAdder eventsFailed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder requestErrors = new LongAdder();
+    private final LongAdder localFlagEvaluations = new LongAdder();
+    private final LongAccumulator maxQueueDepth = new LongAccumulator(Math::max, 0);
+    private volatile int queueDepth;
+
+    private final Histogram batchSize = new Histogram();
+    private final Histogram batchBytes = new Histogram();
+    private final Histogram serializationNanos = new Histogram();
+    private final Histogram deliveryNanos = new Histogram();
+    private final Histogram requestNanos = new Histogram();
+    private final Histogram featureFlagNanos = new Histogram();
+
+    /**
+     * Histogram with power of two buckets: values are only recorded to within a
+     * factor of two, which keeps recording to a couple of atomic increments.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            long clamped = Math.max(0, value);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(clamped) - (clamped == 0 ? 0 : 1));
+            count.increment();
+            sum.add(clamped);
+            max.accumulate(clamped);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * @return an upper bound for the given percentile (0 to 100) of the
+         *         recorded values, at most twice the actual value
+         */
+        public long percentile(double percentile) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * n);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.min(i == 63 ? Long.MAX_VALUE : (2L << i) - 1, max());
+                }
+            }
+            return max();
+        }
+    }
+
+    @Override
+    public void eventEnqueued() {
+        eventsEnqueued.increment();
+    }
+
+    @Override
+    public void eventDropped() {
+        eventsDropped.increment();
+    }
+
+    @Override
+    public void batchDequeued(int events, int queueDepth) {
+        this.queueDepth = queueDepth;
+        maxQueueDepth.accumulate(queueDepth + events);
+        batchSize.record(events);
+    }
+
+    @Override
+    public void batchSerialized(int events, long bytes, long durationNanos) {
+        batchBytes.record(bytes);
+        serializationNanos.record(durationNanos);
+    }
+
+    @Override
+    public void batchSent(int events, long durationNanos) {
+        batchesSent.increment();
+        eventsSent.add(events);
+        deliveryNanos.record(durationNanos);
+    }
+
+    @Override
+    public void batchFailed(int events) {
+        batchesFailed.increment();
+        eventsFailed.add(events);
+    }
+
+    @Override
+    public void retryScheduled() {
+        retries.increment();
+    }
+
+    @Override
+    public void requestCompleted(String route, int statusCode, long durationNanos) {
+        if (statusCode < 200 || statusCode >= 300) {
+            requestErrors.increment();
+        }
+        requestNanos.record(durationNanos);
+    }
+
+    @Override
+    public void featureFlagRequested(boolean evaluatedLocally, long durationNanos) {
+        if (evaluatedLocally) {
+            localFlagEvaluations.increment();
+        }
+        featureFlagNanos.record(durationNanos);
+    }
+
+    public long eventsEnqueued() {
+        return eventsEnqueued.sum();
+    }
+
+    public long eventsDropped() {
+        return eventsDropped.sum();
+    }
+
+    public long batchesSent() {
+        return batchesSent.sum();
+    }
+
+    public long eventsSent() {
+        return eventsSent.sum();
+    }
+
+    public long batchesFailed() {
+        return batchesFailed.sum();
+    }
+
+    public long eventsFailed() {
+        return eventsFailed.sum();
+    }
+
+    public long retries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return requests that failed or got a non-2xx response
+     */
+    public long requestErrors() {
+        return requestErrors.sum();
+    }
+
+    public long localFlagEvaluations() {
+        return localFlagEvaluations.sum();
+    }
+
+    /**
+     * @return events left in the queue partition that last sent a batch
+     */
+    public int queueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return most events seen in a queue partition when a batch was taken
+     */
+    public long maxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public Histogram batchSize() {
+        return batchSize;
+    }
+
+    public Histogram batchBytes() {
+        return batchBytes;
+    }
+
+    public Histogram serializationNanos() {
+        return serializationNanos;
+    }
+
+    /**
+     * @return time from a batch being handed to the sender until it was
+     *         delivered, including retries
+     */
+    public Histogram deliveryNanos() {
+        return deliveryNanos;
+    }
+
+    public Histogram requestNanos() {
+        return requestNanos;
+    }
+
+    public Histogram featureFlagNanos() {
+        return featureFlagNanos;
+    }
+}
@@ -0,0 +1,14 @@
+package com.posthog.java;
+
+/**
+ * Thrown when a feature flag can't be evaluated locally, e.g. because it
+ * depends on a person property that wasn't provided, and /decide has to be
+ * asked instead.
+ */
+class InconclusiveMatchException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    InconclusiveMatchException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,28 @@
+package com.posthog.java;
+
+/**
+ * What the QueueManager does with a new event when its queue is at capacity.
+ */
+public enum OverflowPolicy {
+    /**
+     * Drop the event being added.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drop the oldest queued event to make room for the one being added.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Block the calling thread until there is room, dropping the event if none
+     * frees up within the configured block timeout.
+     */
+    BLOCK,
+
+    /**
+     * Send a batch of queued events, ending with the one being added, on the
+     * calling thread.
+     */
+    CALLER_RUNS
+}
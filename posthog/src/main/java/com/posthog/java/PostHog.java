@@ -1,11 +1,16 @@
 package com.posthog.java;
 
+import java.net.Proxy;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 
 public class PostHog {
@@ -13,11 +18,31 @@ public class PostHog {
     private Thread queueManagerThread;
     private final Sender sender;
     private final PostHogLogger logger;
+    // null unless a personal API key was given
+    private final FeatureFlagPoller featureFlagPoller;
+    // null unless caching of /decide responses is enabled
+    private final DecideCache decideCache;
+    // null to complete futures on the thread that received the response
+    private final Executor callbackExecutor;
+    private final PostHogMetrics metrics;
+    private final IdGenerator idGenerator;
+    private final ThreadFactory threadFactory;
+    private final boolean closeSender;
 
     private static abstract class BuilderBase {
         protected QueueManager queueManager;
         protected Sender sender;
         protected PostHogLogger logger = new DefaultPostHogLogger();
+        protected String personalApiKey;
+        protected Duration featureFlagsPollingInterval = Duration.ofSeconds(30);
+        protected Duration featureFlagsCacheTtl = Duration.ZERO;
+        protected int featureFlagsCacheSize = 1000;
+        protected Executor callbackExecutor;
+        protected PostHogMetrics metrics = PostHogMetrics.NOOP;
+        protected IdGenerator idGenerator = IdGenerator.UUID_V7;
+        protected ThreadFactory threadFactory; // null for named platform threads
+        // senders built by PostHog are closed on shutdown, supplied ones are not
+        protected boolean closeSender;
     }
 
     public static class Builder extends BuilderBase {
@@ -27,6 +52,26 @@ public class PostHog {
         // optional
         private String host = "https://app.posthog.com";
 
+        // optional
+        private int queueCapacity = 10000;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+        private Duration overflowBlockTimeout = Duration.ofMillis(100);
+        private int senderWorkers = 1;
+        private int maxInFlightBatches = 1;
+        private Duration shutdownTimeout = Duration.ofSeconds(30);
+        private int queueStripes = 1;
+        private Compression compression = Compression.NONE;
+        private int compressionThreshold = 1024; // bytes
+        private ExecutorService senderExecutor;
+
+        // optional
+        private Path spoolDirectory;
+        private long spoolMaxBytes = 100 * 1024 * 1024;
+        private FsyncPolicy spoolFsyncPolicy = FsyncPolicy.NEVER;
+
+        // optional
+        private Proxy proxy;
+
         public Builder(String apiKey) {
             this.apiKey = apiKey;
         }
@@ -36,14 +81,188 @@ public class PostHog {
             return this;
         }
 
+        public Builder queueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public Builder overflowBlockTimeout(Duration overflowBlockTimeout) {
+            this.overflowBlockTimeout = overflowBlockTimeout;
+            return this;
+        }
+
         public Builder logger(PostHogLogger logger) {
             this.logger = logger;
             return this;
         }
 
+        public Builder senderWorkers(int senderWorkers) {
+            this.senderWorkers = senderWorkers;
+            return this;
+        }
+
+        /**
+         * More than 1 sends batches concurrently at the cost of per-user
+         * ordering, see {@link QueueManager.Builder#maxInFlightBatches(int)}.
+         */
+        public Builder maxInFlightBatches(int maxInFlightBatches) {
+            this.maxInFlightBatches = maxInFlightBatches;
+            return this;
+        }
+
+        /**
+         * How long {@link PostHog#shutdown()} waits for queued events to be sent,
+         * see {@link QueueManager.Builder#shutdownTimeout(Duration)}.
+         */
+        public Builder shutdownTimeout(Duration shutdownTimeout) {
+            this.shutdownTimeout = shutdownTimeout;
+            return this;
+        }
+
+        /**
+         * Spreads captured events over this many buffers, see
+         * {@link QueueManager.Builder#stripes(int)}.
+         */
+        public Builder queueStripes(int queueStripes) {
+            this.queueStripes = queueStripes;
+            return this;
+        }
+
+        /**
+         * Creates the queue manager thread and its sender worker threads. For
+         * example {@code Thread.ofVirtual().factory()} on Java 21 and newer.
+         */
+        public Builder threadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        /**
+         * Runs the HTTP calls, see {@link HttpSender.Builder#executor(ExecutorService)}.
+         */
+        public Builder senderExecutor(ExecutorService senderExecutor) {
+            this.senderExecutor = senderExecutor;
+            return this;
+        }
+
+        public Builder compression(Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder compressionThreshold(int compressionThreshold) {
+            this.compressionThreshold = compressionThreshold;
+            return this;
+        }
+
+        /**
+         * Proxy for all requests to PostHog, see {@link HttpSender.Builder#proxy(Proxy)}.
+         * The other connection settings are on {@link HttpSender.Builder}.
+         */
+        public Builder proxy(Proxy proxy) {
+            this.proxy = proxy;
+            return this;
+        }
+
+        /**
+         * Enables a spool in this directory for batches that can't be delivered,
+         * see {@link HttpSender.Builder#spoolDirectory(Path)}.
+         */
+        public Builder spoolDirectory(Path spoolDirectory) {
+            this.spoolDirectory = spoolDirectory;
+            return this;
+        }
+
+        public Builder spoolMaxBytes(long spoolMaxBytes) {
+            this.spoolMaxBytes = spoolMaxBytes;
+            return this;
+        }
+
+        public Builder spoolFsyncPolicy(FsyncPolicy spoolFsyncPolicy) {
+            this.spoolFsyncPolicy = spoolFsyncPolicy;
+            return this;
+        }
+
+        /**
+         * Enables local evaluation of feature flags, the flag definitions are
+         * loaded with this key instead of calling /decide for every flag.
+         */
+        public Builder personalApiKey(String personalApiKey) {
+            this.personalApiKey = personalApiKey;
+            return this;
+        }
+
+        public Builder featureFlagsPollingInterval(Duration featureFlagsPollingInterval) {
+            this.featureFlagsPollingInterval = featureFlagsPollingInterval;
+            return this;
+        }
+
+        /**
+         * Caches /decide responses per distinct ID for this long, flag lookups
+         * for the same user within the TTL don't call the API again. Zero, the
+         * default, disables the cache.
+         */
+        public Builder featureFlagsCacheTtl(Duration featureFlagsCacheTtl) {
+            this.featureFlagsCacheTtl = featureFlagsCacheTtl;
+            return this;
+        }
+
+        /**
+         * Maximum number of distinct IDs kept in the /decide cache, the least
+         * recently used ones are evicted first.
+         */
+        public Builder featureFlagsCacheSize(int featureFlagsCacheSize) {
+            this.featureFlagsCacheSize = featureFlagsCacheSize;
+            return this;
+        }
+
+        /**
+         * Executor that completes the futures returned by the asynchronous flag
+         * methods. By default they are completed on the HTTP client's threads, so
+         * callbacks must not block. As usual for CompletableFuture, callbacks
+         * attached after completion run on the attaching thread.
+         */
+        public Builder callbackExecutor(Executor callbackExecutor) {
+            this.callbackExecutor = callbackExecutor;
+            return this;
+        }
+
+        /**
+         * Receives counters and timings from the queue, the HTTP sender and the
+         * feature flag methods, see {@link InMemoryPostHogMetrics}.
+         */
+        public Builder metrics(PostHogMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Generates event uuids, {@link IdGenerator#UUID_V7} by default.
+         */
+        public Builder idGenerator(IdGenerator idGenerator) {
+            this.idGenerator = idGenerator;
+            return this;
+        }
+
         public PostHog build() {
-            this.sender = new HttpSender.Builder(apiKey).host(host).logger(logger).build();
-            this.queueManager = new QueueManager.Builder(this.sender).build();
+            HttpSender.Builder senderBuilder = new HttpSender.Builder(apiKey).host(host).logger(logger)
+                    .compression(compression).compressionThreshold(compressionThreshold).spoolDirectory(spoolDirectory)
+                    .spoolMaxBytes(spoolMaxBytes).spoolFsyncPolicy(spoolFsyncPolicy).proxy(proxy)
+                    .metrics(metrics);
+            if (senderExecutor != null) {
+                senderBuilder.executor(senderExecutor);
+            }
+            this.sender = senderBuilder.build();
+            this.closeSender = true;
+            this.queueManager = new QueueManager.Builder(this.sender).capacity(queueCapacity)
+                    .overflowPolicy(overflowPolicy).blockTimeout(overflowBlockTimeout).senderWorkers(senderWorkers)
+                    .maxInFlightBatches(maxInFlightBatches).shutdownTimeout(shutdownTimeout).stripes(queueStripes)
+                    .threadFactory(threadFactory).metrics(metrics).logger(logger).build();
             return new PostHog(this);
         }
     }
@@ -56,6 +275,57 @@ public class PostHog {
                 this.sender = sender[0];
         }
 
+        public BuilderWithCustomQueueManager personalApiKey(String personalApiKey) {
+            this.personalApiKey = personalApiKey;
+            return this;
+        }
+
+        public BuilderWithCustomQueueManager featureFlagsPollingInterval(Duration featureFlagsPollingInterval) {
+            this.featureFlagsPollingInterval = featureFlagsPollingInterval;
+            return this;
+        }
+
+        public BuilderWithCustomQueueManager featureFlagsCacheTtl(Duration featureFlagsCacheTtl) {
+            this.featureFlagsCacheTtl = featureFlagsCacheTtl;
+            return this;
+        }
+
+        public BuilderWithCustomQueueManager featureFlagsCacheSize(int featureFlagsCacheSize) {
+            this.featureFlagsCacheSize = featureFlagsCacheSize;
+            return this;
+        }
+
+        public BuilderWithCustomQueueManager callbackExecutor(Executor callbackExecutor) {
+            this.callbackExecutor = callbackExecutor;
+            return this;
+        }
+
+        /**
+         * Receives timings of the feature flag methods, the queue manager and
+         * sender take their own metrics.
+         */
+        public BuilderWithCustomQueueManager metrics(PostHogMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Generates event uuids, {@link IdGenerator#UUID_V7} by default.
+         */
+        public BuilderWithCustomQueueManager idGenerator(IdGenerator idGenerator) {
+            this.idGenerator = idGenerator;
+            return this;
+        }
+
+        /**
+         * Creates the thread running the queue manager, whose worker threads are
+         * set up by {@link QueueManager.Builder#threadFactory(ThreadFactory)}.
+         */
+        public BuilderWithCustomQueueManager threadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
         public PostHog build() {
             return new PostHog(this);
         }
@@ -65,27 +335,106 @@ public class PostHog {
         this.queueManager = builder.queueManager;
         this.sender = builder.sender;
         this.logger = builder.logger;
+        if (builder.featureFlagsCacheTtl.isNegative()) {
+            throw new IllegalArgumentException("featureFlagsCacheTtl must not be negative: " + builder.featureFlagsCacheTtl);
+        }
+        if (builder.featureFlagsCacheSize <= 0) {
+            throw new IllegalArgumentException("featureFlagsCacheSize must be positive: " + builder.featureFlagsCacheSize);
+        }
+        if (builder.personalApiKey != null && builder.sender != null) {
+            this.featureFlagPoller = new FeatureFlagPoller(builder.sender, builder.personalApiKey,
+                    builder.featureFlagsPollingInterval, builder.logger);
+            this.featureFlagPoller.start();
+        } else {
+            this.featureFlagPoller = null;
+        }
+        this.decideCache = builder.featureFlagsCacheTtl.isZero() ? null
+                : new DecideCache(builder.featureFlagsCacheTtl, builder.featureFlagsCacheSize);
+        this.callbackExecutor = builder.callbackExecutor;
+        this.metrics = builder.metrics;
+        this.idGenerator = builder.idGenerator;
+        this.threadFactory = builder.threadFactory;
+        this.closeSender = builder.closeSender;
         startQueueManager();
     }
 
+    /**
+     * Sends the queued events and stops. Waits at most the shutdown timeout for
+     * the sender, batches it is still retrying then are spooled or dropped.
+     */
     public void shutdown() {
+        if (featureFlagPoller != null) {
+            featureFlagPoller.stop();
+        }
         queueManager.stop();
         try {
             queueManagerThread.join(); // wait for the current items in queue to be sent
         } catch (InterruptedException e) {
             logger.error("Error shutting down PostHog", e);
         }
+        if (closeSender) {
+            sender.close();
+        }
+    }
+
+    /**
+     * 
+     * @return how many events have been dropped because the queue was at
+     *         capacity, see {@link Builder#overflowPolicy(OverflowPolicy)}
+     */
+    public long droppedEvents() {
+        return queueManager.droppedEvents();
+    }
+
+    /**
+     * 
+     * @return how many flag lookups were answered from the /decide cache, see
+     *         {@link Builder#featureFlagsCacheTtl(Duration)}
+     */
+    public long featureFlagCacheHits() {
+        return decideCache == null ? 0 : decideCache.hits();
+    }
+
+    /**
+     * 
+     * @return how many flag lookups had to call /decide because the response
+     *         wasn't cached
+     */
+    public long featureFlagCacheMisses() {
+        return decideCache == null ? 0 : decideCache.misses();
     }
 
     private void startQueueManager() {
-        queueManagerThread = new Thread(queueManager, "PostHog QueueManager thread");
+        queueManagerThread = threadFactory != null ? threadFactory.newThread(queueManager)
+                : new Thread(queueManager, "PostHog QueueManager thread");
         queueManagerThread.start();
         // TODO handle interrupts? (via addShutdownHook)
     }
 
     private void enqueue(String distinctId, String event, Map<String, Object> properties) {
-        JSONObject eventJson = getEventJson(event, distinctId, properties);
-        queueManager.add(eventJson);
+        // serialization is left to the sender, only the fields are captured here
+        queueManager.add(new PostHogEvent(idGenerator.generate(), Instant.now(), distinctId, event, properties));
+    }
+
+    void enqueueJson(String distinctId, String event, String propertiesJson) {
+        queueManager.add(new PostHogEvent(idGenerator.generate(), Instant.now(), distinctId, event, propertiesJson));
+    }
+
+    /**
+     * Starts building an event with typed properties, which are written straight
+     * to JSON instead of being collected in a map first. For example:
+     *
+     * <pre>
+     * posthog.event("distinct id 1", "movie played").putLong("movie_id", 123).putString("category", "romcom")
+     *         .capture();
+     * </pre>
+     *
+     * @param distinctId which uniquely identifies your user in your database. Must
+     *                   not be null or empty.
+     * @param event      name of the event. Must not be null or empty.
+     */
+    public EventBuilder event(String distinctId, String event) {
+        return new EventBuilder(this, distinctId, event);
     }
 
     /**
@@ -94,6 +443,8 @@ public class PostHog {
      *                   not be null or empty.
      * @param event      name of the event. Must not be null or empty.
      * @param properties an array with any event properties you'd like to set.
+     *                   The map is serialized when the event is sent, so it must
+     *                   not be modified after this call.
      */
     public void capture(String distinctId, String event, Map<String, Object> properties) {
         enqueue(distinctId, event, properties);
@@ -189,25 +540,6 @@ public class PostHog {
         enqueue(distinctId, "$set_once", props);
     }
 
-    private JSONObject getEventJson(String event, String distinctId, Map<String, Object> properties) {
-        JSONObject eventJson = new JSONObject();
-        try {
-            // Ensure that we generate an identifier for this event such that we can e.g.
-            // deduplicate server-side any duplicates we may receive.
-            eventJson.put("uuid", UUID.randomUUID().toString());
-            eventJson.put("timestamp", Instant.now().toString());
-            eventJson.put("distinct_id", distinctId);
-            eventJson.put("event", event);
-            eventJson.put("$lib", "posthog-java");
-            if (properties != null) {
-                eventJson.put("properties", properties);
-            }
-        } catch (JSONException e) {
-            logger.error("Error creating event JSON", e);
-        }
-        return eventJson;
-    }
-
     /**
      * 
      * @param featureFlag which uniquely identifies your feature flag
@@ -218,9 +550,23 @@ public class PostHog {
      * @return           whether the feature flag is enabled or not
      */
     public boolean isFeatureFlagEnabled(String featureFlag, String distinctId) {
-        if (getFeatureFlags(distinctId).get(featureFlag) == null)
-            return false;
-        return Boolean.parseBoolean(getFeatureFlags(distinctId).get(featureFlag));
+        return isFeatureFlagEnabled(featureFlag, distinctId, null);
+    }
+
+    /**
+     * 
+     * @param featureFlag      which uniquely identifies your feature flag
+     *
+     * @param distinctId       which uniquely identifies your user in your
+     *                         database. Must not be null or empty.
+     *
+     * @param personProperties person properties used to evaluate the flag
+     *                         locally, see {@link Builder#personalApiKey(String)}
+     * 
+     * @return                 whether the feature flag is enabled or not
+     */
+    public boolean isFeatureFlagEnabled(String featureFlag, String distinctId, Map<String, Object> personProperties) {
+        return Boolean.parseBoolean(getFeatureFlag(featureFlag, distinctId, personProperties));
     }
 
     /**
@@ -233,7 +579,35 @@ public class PostHog {
      * @return           Variant of the feature flag
      */
     public String getFeatureFlag(String featureFlag, String distinctId) {
-        return getFeatureFlags(distinctId).get(featureFlag);
+        return getFeatureFlag(featureFlag, distinctId, null);
+    }
+
+    /**
+     * 
+     * @param featureFlag      which uniquely identifies your feature flag
+     *
+     * @param distinctId       which uniquely identifies your user in your
+     *                         database. Must not be null or empty.
+     *
+     * @param personProperties person properties used to evaluate the flag
+     *                         locally, see {@link Builder#personalApiKey(String)}
+     * 
+     * @return                 Variant of the feature flag
+     */
+    public String getFeatureFlag(String featureFlag, String distinctId, Map<String, Object> personProperties) {
+        long start = System.nanoTime();
+        if (featureFlagPoller != null) {
+            try {
+                String value = featureFlagPoller.getFeatureFlag(featureFlag, distinctId, personProperties);
+                metrics.featureFlagRequested(true, System.nanoTime() - start);
+                return value;
+            } catch (InconclusiveMatchException e) {
+                logger.debug("Falling back to /decide for " + featureFlag + ": " + e.getMessage());
+            }
+        }
+        String value = getAllFlagsAndPayloads(distinctId).getFlag(featureFlag);
+        metrics.featureFlagRequested(false, System.nanoTime() - start);
+        return value;
     }
 
     /**
@@ -246,33 +620,132 @@ public class PostHog {
      * @return           The feature flag payload, if it exists
      */
     public String getFeatureFlagPayload(String featureFlag, String distinctId) {
-        return getFeatureFlagPayloads(distinctId).get(featureFlag);
+        return getFeatureFlagPayload(featureFlag, distinctId, null);
     }
 
-    private HashMap<String, String> getFeatureFlags(String distinctId) {
-        JSONObject response = sender.post("/decide/?v=3", distinctId);
+    /**
+     * 
+     * @param featureFlag      which uniquely identifies your feature flag
+     *
+     * @param distinctId       which uniquely identifies your user in your
+     *                         database. Must not be null or empty.
+     *
+     * @param personProperties person properties used to evaluate the flag
+     *                         locally, see {@link Builder#personalApiKey(String)}
+     * 
+     * @return                 The feature flag payload, if it exists
+     */
+    public String getFeatureFlagPayload(String featureFlag, String distinctId, Map<String, Object> personProperties) {
+        long start = System.nanoTime();
+        if (featureFlagPoller != null) {
+            try {
+                String payload = featureFlagPoller.getFeatureFlagPayload(featureFlag, distinctId, personProperties);
+                metrics.featureFlagRequested(true, System.nanoTime() - start);
+                return payload;
+            } catch (InconclusiveMatchException e) {
+                logger.debug("Falling back to /decide for " + featureFlag + ": " + e.getMessage());
+            }
+        }
+        String payload = getAllFlagsAndPayloads(distinctId).getPayload(featureFlag);
+        metrics.featureFlagRequested(false, System.nanoTime() - start);
+        return payload;
+    }
 
-        HashMap<String, String> featureFlags = new HashMap<>();
+    /**
+     * 
+     * @param distinctId which uniquely identifies your user in your database. Must
+     *                   not be null or empty.
+     * 
+     * @return           all feature flags and their payloads for the user, loaded
+     *                   with a single /decide call. Empty if the call failed.
+     */
+    public FeatureFlags getAllFlagsAndPayloads(String distinctId) {
+        FeatureFlags flags = decideCache == null ? null : decideCache.get(distinctId);
+        if (flags != null) {
+            return flags;
+        }
+        JSONObject response = sender.post("/decide/?v=3", distinctId);
+        if (response == null) {
+            return FeatureFlags.EMPTY;
+        }
+        flags = FeatureFlags.fromDecideResponse(response);
+        if (decideCache != null) {
+            decideCache.put(distinctId, flags);
+        }
+        return flags;
+    }
 
-        JSONObject flags = response.getJSONObject("featureFlags");
-        for (String flag : flags.keySet()) {
-            featureFlags.put(flag, flags.get(flag).toString());
+    /**
+     * Asynchronous variant of {@link #getAllFlagsAndPayloads(String)}.
+     */
+    public CompletableFuture<FeatureFlags> getAllFlagsAsync(String distinctId) {
+        FeatureFlags cached = decideCache == null ? null : decideCache.get(distinctId);
+        if (cached != null) {
+            return onCallbackExecutor(CompletableFuture.completedFuture(cached));
         }
+        return onCallbackExecutor(sender.postAsync("/decide/?v=3", distinctId).thenApply(response -> {
+            if (response == null) {
+                return FeatureFlags.EMPTY;
+            }
+            FeatureFlags flags = FeatureFlags.fromDecideResponse(response);
+            if (decideCache != null) {
+                decideCache.put(distinctId, flags);
+            }
+            return flags;
+        }));
+    }
 
-        return featureFlags;
+    /**
+     * Asynchronous variant of {@link #getFeatureFlag(String, String)}.
+     */
+    public CompletableFuture<String> getFeatureFlagAsync(String featureFlag, String distinctId) {
+        return getFeatureFlagAsync(featureFlag, distinctId, null);
     }
 
-    private HashMap<String, String> getFeatureFlagPayloads(String distinctId) {
-        JSONObject response = sender.post("/decide/?v=3", distinctId);
+    /**
+     * Asynchronous variant of {@link #getFeatureFlag(String, String, Map)}. Flags
+     * are only evaluated locally once the definitions have been loaded in the
+     * background, until then /decide is called.
+     */
+    public CompletableFuture<String> getFeatureFlagAsync(String featureFlag, String distinctId,
+            Map<String, Object> personProperties) {
+        long start = System.nanoTime();
+        if (featureFlagPoller != null && featureFlagPoller.isLoaded()) {
+            try {
+                String value = featureFlagPoller.getFeatureFlag(featureFlag, distinctId, personProperties);
+                metrics.featureFlagRequested(true, System.nanoTime() - start);
+                return onCallbackExecutor(CompletableFuture.completedFuture(value));
+            } catch (InconclusiveMatchException e) {
+                logger.debug("Falling back to /decide for " + featureFlag + ": " + e.getMessage());
+            }
+        }
+        return getAllFlagsAsync(distinctId).thenApply(flags -> {
+            metrics.featureFlagRequested(false, System.nanoTime() - start);
+            return flags.getFlag(featureFlag);
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #isFeatureFlagEnabled(String, String)}.
+     */
+    public CompletableFuture<Boolean> isFeatureFlagEnabledAsync(String featureFlag, String distinctId) {
+        return isFeatureFlagEnabledAsync(featureFlag, distinctId, null);
+    }
 
-        HashMap<String, String> flagPayloads = new HashMap<>();
+    /**
+     * Asynchronous variant of {@link #isFeatureFlagEnabled(String, String, Map)}.
+     */
+    public CompletableFuture<Boolean> isFeatureFlagEnabledAsync(String featureFlag, String distinctId,
+            Map<String, Object> personProperties) {
+        return getFeatureFlagAsync(featureFlag, distinctId, personProperties).thenApply(Boolean::parseBoolean);
+    }
 
-        JSONObject payloads = response.getJSONObject("featureFlagPayloads");
-        for (String flag : payloads.keySet()) {
-            String payload = payloads.get(flag).toString();
-            flagPayloads.put(flag, payload);
+    private <T> CompletableFuture<T> onCallbackExecutor(CompletableFuture<T> future) {
+        if (callbackExecutor == null) {
+            return future;
         }
-
-        return flagPayloads;
+        // dependent stages run on the thread that completes the returned future
+        return future.whenCompleteAsync((result, error) -> {
+        }, callbackExecutor);
     }
 }
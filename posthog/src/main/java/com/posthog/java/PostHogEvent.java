@@ -0,0 +1,162 @@
+package com.posthog.java;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An event waiting in the queue. Only the fields are captured on the calling
+ * thread, the event is serialized to JSON when it is sent.
+ *
+ * The properties map is kept by reference, it must not be modified after the
+ * event has been captured.
+ */
+public final class PostHogEvent {
+    // Sender's default methods have no logger of their own to report to
+    private static final PostHogLogger LOGGER = new DefaultPostHogLogger();
+
+    private final UUID uuid;
+    private final Instant timestamp;
+    private final String distinctId;
+    private final String event;
+    private final Map<String, Object> properties;
+    // properties already serialized to a JSON object, set instead of properties
+    // for events built with EventBuilder
+    private final String propertiesJson;
+    // set instead of the fields above for events queued as JSON
+    private final JSONObject json;
+
+    PostHogEvent(UUID uuid, Instant timestamp, String distinctId, String event, Map<String, Object> properties) {
+        this.uuid = uuid;
+        this.timestamp = timestamp;
+        this.distinctId = distinctId;
+        this.event = event;
+        this.properties = properties;
+        this.propertiesJson = null;
+        this.json = null;
+    }
+
+    PostHogEvent(UUID uuid, Instant timestamp, String distinctId, String event, String propertiesJson) {
+        this.uuid = uuid;
+        this.timestamp = timestamp;
+        this.distinctId = distinctId;
+        this.event = event;
+        this.properties = null;
+        this.propertiesJson = propertiesJson;
+        this.json = null;
+    }
+
+    private PostHogEvent(JSONObject json) {
+        this.uuid = null;
+        this.timestamp = null;
+        this.distinctId = json.optString("distinct_id", null);
+        this.event = json.optString("event", null);
+        this.properties = null;
+        this.propertiesJson = null;
+        this.json = json;
+    }
+
+    /**
+     * Wraps an already built event, which is sent as is.
+     */
+    static PostHogEvent fromJson(JSONObject json) {
+        return new PostHogEvent(json);
+    }
+
+    /**
+     * Converts the events for senders that take JSON. An event that can't be
+     * converted, say because its properties were modified by another thread, is
+     * logged and left out rather than failing the whole batch.
+     */
+    static List<JSONObject> toJson(List<PostHogEvent> events) {
+        List<JSONObject> json = new ArrayList<JSONObject>(events.size());
+        for (PostHogEvent event : events) {
+            try {
+                json.add(event.toJson());
+            } catch (RuntimeException e) {
+                LOGGER.error("Error serializing event " + event.event + ", it will not be sent", e);
+            }
+        }
+        return json;
+    }
+
+    static List<PostHogEvent> fromJson(List<JSONObject> events) {
+        List<PostHogEvent> wrapped = new ArrayList<PostHogEvent>(events.size());
+        for (JSONObject json : events) {
+            wrapped.add(fromJson(json));
+        }
+        return wrapped;
+    }
+
+    public String getDistinctId() {
+        return distinctId;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public JSONObject toJson() {
+        if (json != null) {
+            return json;
+        }
+        JSONObject eventJson = new JSONObject();
+        // Ensure that we generate an identifier for this event such that we can e.g.
+        // deduplicate server-side any duplicates we may receive.
+        eventJson.put("uuid", uuid.toString());
+        eventJson.put("timestamp", TimestampFormatter.format(timestamp));
+        eventJson.put("distinct_id", distinctId);
+        eventJson.put("event", event);
+        eventJson.put("$lib", "posthog-java");
+        if (properties != null) {
+            eventJson.put("properties", properties);
+        } else if (propertiesJson != null) {
+            eventJson.put("properties", new JSONObject(propertiesJson));
+        }
+        return eventJson;
+    }
+
+    /**
+     * Writes the same JSON as {@link #toJson()} without building it first.
+     */
+    void writeTo(Writer writer) throws IOException {
+        try {
+            if (json != null) {
+                json.write(writer);
+                return;
+            }
+            writer.write("{\"uuid\":\"");
+            writer.write(uuid.toString());
+            writer.write("\",\"timestamp\":\"");
+            TimestampFormatter.formatTo(timestamp, writer);
+            writer.write('"');
+            // like JSONObject.put, null values are left out
+            if (distinctId != null) {
+                writer.write(",\"distinct_id\":");
+                writer.write(JSONObject.quote(distinctId));
+            }
+            if (event != null) {
+                writer.write(",\"event\":");
+                writer.write(JSONObject.quote(event));
+            }
+            writer.write(",\"$lib\":\"posthog-java\"");
+            if (properties != null) {
+                writer.write(",\"properties\":");
+                new JSONObject(properties).write(writer);
+            } else if (propertiesJson != null) {
+                writer.write(",\"properties\":");
+                writer.write(propertiesJson);
+            }
+            writer.write('}');
+        } catch (JSONException e) {
+            throw new IOException("Error serializing event " + event, e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.posthog.java;
+
+/**
+ * Listener for what the SDK is doing, to feed into your metrics system. Every
+ * method does nothing by default, implement the ones you need. Methods are
+ * called on the threads doing the work, sometimes on the hot path, so they must
+ * be fast and must not block.
+ *
+ * @see InMemoryPostHogMetrics
+ */
+public interface PostHogMetrics {
+    public static final PostHogMetrics NOOP = new PostHogMetrics() {
+    };
+
+    /**
+     * An event was added to the queue.
+     */
+    public default void eventEnqueued() {
+    }
+
+    /**
+     * An event was dropped because the queue was at capacity.
+     */
+    public default void eventDropped() {
+    }
+
+    /**
+     * A batch was taken off a queue partition, leaving queueDepth events in it.
+     */
+    public default void batchDequeued(int events, int queueDepth) {
+    }
+
+    /**
+     * A batch was serialized to JSON before sending.
+     */
+    public default void batchSerialized(int events, long bytes, long durationNanos) {
+    }
+
+    /**
+     * A batch was delivered, durationNanos includes any retries.
+     */
+    public default void batchSent(int events, long durationNanos) {
+    }
+
+    /**
+     * A batch could not be delivered.
+     */
+    public default void batchFailed(int events) {
+    }
+
+    /**
+     * A failed request is going to be retried.
+     */
+    public default void retryScheduled() {
+    }
+
+    /**
+     * An HTTP request completed.
+     *
+     * @param statusCode the response code, or -1 if no response was received
+     */
+    public default void requestCompleted(String route, int statusCode, long durationNanos) {
+    }
+
+    /**
+     * A feature flag or payload was looked up.
+     *
+     * @param evaluatedLocally whether it was evaluated from the polled
+     *                         definitions rather than by calling /decide
+     */
+    public default void featureFlagRequested(boolean evaluatedLocally, long durationNanos) {
+    }
+}
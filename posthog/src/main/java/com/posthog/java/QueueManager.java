@@ -1,53 +1,49 @@
 package com.posthog.java;
 
 import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.json.JSONObject;
 
 public class QueueManager implements Runnable {
-    class QueuePtr {
-        // TODO: not sure if there's a datastructure in Java that gives me these
-        // operations efficiently, specifically retrieveAndReset
-        // Not sure if LinkedList and JSONObject are good choices here
-        public List<JSONObject> ptr = new LinkedList<JSONObject>();
+    // how often a partition checks whether an unavailable sender has recovered
+    private static final long SENDER_UNAVAILABLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // how often a partition waiting for a free in-flight slot checks whether it was stopped
+    private static final long STOP_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
 
-        public QueuePtr() {
-        };
-
-        public synchronized int size() {
-            return ptr.size();
-        }
-
-        public synchronized boolean isEmpty() {
-            return ptr.isEmpty();
-        }
-
-        public synchronized void add(JSONObject json) {
-            ptr.add(json);
-        }
-
-        public synchronized List<JSONObject> retrieveAndReset() {
-            if (isEmpty()) {
-                return Collections.emptyList();
-            }
-            List<JSONObject> cur = ptr;
-            ptr = new LinkedList<JSONObject>();
-            return cur;
-        }
-    }
-
-    private QueuePtr queue = new QueuePtr();
+    // events are partitioned by distinct_id, each partition has its own queue and
+    // sender thread so that batches for different users can be in flight at once
+    private final Partition[] partitions;
     private volatile boolean stop = false;
-    private Instant sendAfter;
+    // System.nanoTime() after which a stopped queue gives up on the sender
+    private volatile long stopDeadline;
+    private final LongAdder droppedEvents = new LongAdder();
+    // only used by producers blocked with OverflowPolicy.BLOCK
+    private final ReentrantLock notFullLock = new ReentrantLock();
+    private final Condition notFull = notFullLock.newCondition();
+    private final AtomicInteger blockedProducers = new AtomicInteger();
     // builder inputs
     private Sender sender;
     private int maxQueueSize;
     private Duration maxTimeInQueue;
-    private int sleepMs;
+    private OverflowPolicy overflowPolicy;
+    private Duration blockTimeout;
+    private int maxInFlightBatches;
+    private Duration shutdownTimeout;
+    private PostHogMetrics metrics;
+    private PostHogLogger logger;
+    private ThreadFactory threadFactory;
 
     public static class Builder {
         // required
@@ -56,7 +52,16 @@ public class QueueManager implements Runnable {
         // optional
         private int maxQueueSize = 50; // if more than this many items in queue trigger a send
         private Duration maxTimeInQueue = Duration.ofSeconds(1); // if more than this time in queue send trigger a send
-        private int sleepMs = 100; // how long do we sleep between checking the above conditions
+        private int capacity = 10000; // how many events can be waiting to be sent, rounded up to a power of 2
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST; // what to do when capacity is reached
+        private Duration blockTimeout = Duration.ofMillis(100); // how long OverflowPolicy.BLOCK waits for room
+        private int senderWorkers = 1; // how many threads send batches concurrently
+        private int maxInFlightBatches = 1; // how many batches each worker may have waiting on the sender
+        private Duration shutdownTimeout = Duration.ofSeconds(30); // how long stop() waits for the sender
+        private int stripes = 1; // how many buffers producers spread over in each partition, rounded up to a power of 2
+        private PostHogMetrics metrics = PostHogMetrics.NOOP;
+        private PostHogLogger logger = new DefaultPostHogLogger();
+        private ThreadFactory threadFactory; // null for named platform threads
 
         public Builder(Sender sender) {
             this.sender = sender;
@@ -72,8 +77,88 @@ public class QueueManager implements Runnable {
             return this;
         }
 
+        /**
+         * @deprecated the queue manager no longer polls, it is woken up as soon as
+         *             maxQueueSize events are queued or maxTimeInQueue has elapsed.
+         *             This setting is ignored.
+         */
+        @Deprecated
         public Builder sleepMs(int sleepMs) {
-            this.sleepMs = sleepMs;
+            return this;
+        }
+
+        public Builder capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public Builder blockTimeout(Duration blockTimeout) {
+            this.blockTimeout = blockTimeout;
+            return this;
+        }
+
+        public Builder senderWorkers(int senderWorkers) {
+            this.senderWorkers = senderWorkers;
+            return this;
+        }
+
+        /**
+         * How many batches each worker may have waiting on the sender. With the
+         * default of 1 a worker's batches are sent one after the other, so each
+         * user's events arrive in the order they were captured. More than 1 keeps
+         * a slow request from holding back the batches behind it, but batches
+         * of the same worker, retries and split batches included, may then
+         * arrive out of order.
+         */
+        public Builder maxInFlightBatches(int maxInFlightBatches) {
+            this.maxInFlightBatches = maxInFlightBatches;
+            return this;
+        }
+
+        /**
+         * Once stopped, how long to wait for batches still being sent, including
+         * retries the server asked to delay, and for room to send what is still
+         * queued. Events not handed to the sender by then are dropped.
+         */
+        public Builder shutdownTimeout(Duration shutdownTimeout) {
+            this.shutdownTimeout = shutdownTimeout;
+            return this;
+        }
+
+        /**
+         * Splits the queue of each partition into this many buffers, chosen by
+         * the capturing thread, so that many threads capturing at once don't all
+         * contend on the same buffer. Useful with dozens of capturing threads,
+         * around the number of cores is a good start. With more than one buffer
+         * {@link OverflowPolicy#DROP_OLDEST} drops the oldest event of one
+         * buffer, which isn't necessarily the oldest event queued.
+         */
+        public Builder stripes(int stripes) {
+            this.stripes = stripes;
+            return this;
+        }
+
+        /**
+         * Creates the worker threads of all partitions but the first, which is
+         * worked by the thread calling {@link QueueManager#run()}.
+         */
+        public Builder threadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        public Builder metrics(PostHogMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public Builder logger(PostHogLogger logger) {
+            this.logger = logger;
             return this;
         }
 
@@ -86,52 +171,358 @@ public class QueueManager implements Runnable {
         this.sender = builder.sender;
         this.maxQueueSize = builder.maxQueueSize;
         this.maxTimeInQueue = builder.maxTimeInQueue;
-        this.sleepMs = builder.sleepMs;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.blockTimeout = builder.blockTimeout;
+        this.maxInFlightBatches = builder.maxInFlightBatches;
+        this.shutdownTimeout = builder.shutdownTimeout;
+        this.metrics = builder.metrics;
+        this.logger = builder.logger;
+        this.threadFactory = builder.threadFactory;
+        if (builder.senderWorkers < 1) {
+            throw new IllegalArgumentException("senderWorkers must be positive: " + builder.senderWorkers);
+        }
+        if (builder.maxInFlightBatches < 1) {
+            throw new IllegalArgumentException("maxInFlightBatches must be positive: " + builder.maxInFlightBatches);
+        }
+        if (builder.shutdownTimeout.isNegative()) {
+            throw new IllegalArgumentException("shutdownTimeout must not be negative: " + builder.shutdownTimeout);
+        }
+        if (builder.stripes < 1) {
+            throw new IllegalArgumentException("stripes must be positive: " + builder.stripes);
+        }
+        this.partitions = new Partition[builder.senderWorkers];
+        // capacity is shared out between the partitions
+        int partitionCapacity = (builder.capacity + partitions.length - 1) / partitions.length;
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition(partitionCapacity, builder.stripes);
+        }
     }
 
     public void stop() {
-        stop = true; // TODO: should interrupt sleep?
+        if (!stop) {
+            stopDeadline = System.nanoTime() + shutdownTimeout.toNanos();
+        }
+        stop = true;
+        for (Partition partition : partitions) {
+            partition.wakeUp();
+        }
+        signalNotFull();
     }
 
-    public void add(JSONObject eventJson) {
-        queue.add(eventJson);
+    /**
+     * @return false if the queue is at capacity and the event was dropped
+     *         according to the overflow policy
+     */
+    public boolean add(JSONObject eventJson) {
+        return add(PostHogEvent.fromJson(eventJson));
     }
 
-    public int queueSize() {
-        return queue.size();
+    /**
+     * @return false if the queue is at capacity and the event was dropped
+     *         according to the overflow policy
+     */
+    public boolean add(PostHogEvent event) {
+        return partitionFor(event).add(event);
     }
 
-    public void sendAll() {
-        List<JSONObject> toSend = queue.retrieveAndReset();
-        updateSendAfter(); // after queue reset but before sending as the latter could take a long time
-        if (!toSend.isEmpty()) {
-            sender.send(toSend);
+    private Partition partitionFor(PostHogEvent event) {
+        if (partitions.length == 1) {
+            return partitions[0];
         }
+        // all events of a user go through the same partition to keep them in order
+        int hash = Objects.hashCode(event.getDistinctId());
+        hash ^= (hash >>> 16);
+        return partitions[Math.floorMod(hash, partitions.length)];
     }
 
-    private void updateSendAfter() {
-        sendAfter = Instant.now().plus(maxTimeInQueue);
+    private void signalNotFull() {
+        if (blockedProducers.get() == 0) {
+            return;
+        }
+        notFullLock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            notFullLock.unlock();
+        }
     }
 
-    private void sleep() {
-        try {
-            Thread.sleep(sleepMs);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            stop = true; // TODO: should we stop? should trigger an interrupt up?
+    public int queueSize() {
+        int size = 0;
+        for (Partition partition : partitions) {
+            size += partition.queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return how many events have been dropped because the queue was at capacity
+     */
+    public long droppedEvents() {
+        return droppedEvents.sum();
+    }
+
+    public void sendAll() {
+        for (Partition partition : partitions) {
+            partition.sendAll();
+        }
+    }
+
+    private void stopIfInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            stop(); // flush what we have and exit, same as an explicit stop()
         }
     }
 
     @Override
     public void run() {
-        updateSendAfter();
-        while (!stop) {
-            if (queue.size() < maxQueueSize && Instant.now().isBefore(sendAfter)) {
-                sleep();
-            } else {
+        // the calling thread works the first partition itself
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 1; i < partitions.length; i++) {
+            Thread worker = threadFactory != null ? threadFactory.newThread(partitions[i])
+                    : new Thread(partitions[i], "PostHog QueueManager worker " + i);
+            worker.start();
+            workers.add(worker);
+        }
+        partitions[0].run();
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                stop();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class Partition implements Runnable {
+        private final StripedRingBuffer<PostHogEvent> queue;
+        // the thread executing run(), producers unpark it when a batch is ready
+        private volatile Thread consumer;
+        // set by the consumer before it parks waiting for the first event
+        private volatile boolean idle = false;
+        // permits for batches handed to the sender that haven't completed yet
+        private final Semaphore inFlight;
+
+        Partition(int capacity, int stripes) {
+            this.queue = new StripedRingBuffer<PostHogEvent>(capacity, stripes);
+            this.inFlight = new Semaphore(maxInFlightBatches);
+        }
+
+        boolean add(PostHogEvent event) {
+            if (!queue.offer(event) && !handleOverflow(event)) {
+                droppedEvents.increment();
+                metrics.eventDropped();
+                return false;
+            }
+            metrics.eventEnqueued();
+            // idle is read after the offer is published, so either we see the consumer
+            // going idle here or the consumer sees our event before parking
+            if (idle || queue.sizeAtLeast(maxQueueSize)) {
+                wakeUp();
+            }
+            return true;
+        }
+
+        private boolean handleOverflow(PostHogEvent event) {
+            switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!queue.offer(event)) {
+                    if (queue.poll() != null) {
+                        droppedEvents.increment();
+                        metrics.eventDropped();
+                    }
+                }
+                return true;
+            case BLOCK:
+                return offerBlocking(event);
+            case CALLER_RUNS:
+                List<PostHogEvent> batch = new ArrayList<PostHogEvent>(maxQueueSize);
+                queue.drainTo(batch, maxQueueSize - 1);
+                batch.add(event);
+                sender.sendEvents(batch);
+                return true;
+            case DROP_NEWEST:
+            default:
+                return false;
+            }
+        }
+
+        private boolean offerBlocking(PostHogEvent event) {
+            // registered before retrying the offer, so a consumer draining after our
+            // failed offer is guaranteed to signal us
+            blockedProducers.incrementAndGet();
+            notFullLock.lock();
+            try {
+                long remaining = blockTimeout.toNanos();
+                while (!queue.offer(event)) {
+                    if (remaining <= 0 || stop) {
+                        return false;
+                    }
+                    remaining = notFull.awaitNanos(remaining);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                notFullLock.unlock();
+                blockedProducers.decrementAndGet();
+            }
+        }
+
+        void wakeUp() {
+            Thread thread = consumer;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void sendAll() {
+            while (true) {
+                // wait for a free slot before draining, so events keep queueing
+                // (and the overflow policy applies) while the sender is busy
+                if (!acquireInFlightSlot()) {
+                    spoolRemaining();
+                    return;
+                }
+                if (!stop && !sender.isAvailable()) {
+                    inFlight.release();
+                    return;
+                }
+                List<PostHogEvent> toSend = retrieveBatch();
+                if (toSend.isEmpty()) {
+                    inFlight.release();
+                    return;
+                }
+                try {
+                    sender.sendEventsAsync(toSend).whenComplete((success, error) -> inFlight.release());
+                } catch (RuntimeException e) {
+                    // keep the worker alive, only this batch is lost
+                    inFlight.release();
+                    metrics.batchFailed(toSend.size());
+                    logger.error("Error sending events to PostHog, " + toSend.size() + " events were dropped", e);
+                }
+            }
+        }
+
+        /**
+         * Hands what is left in the queue to the sender to keep, called when the
+         * sender did not take it before shutdownTimeout.
+         */
+        private void spoolRemaining() {
+            int spooled = 0;
+            int dropped = 0;
+            for (List<PostHogEvent> batch = retrieveBatch(); !batch.isEmpty(); batch = retrieveBatch()) {
+                boolean kept;
+                try {
+                    kept = sender.spool(batch);
+                } catch (RuntimeException e) {
+                    logger.error("Error spooling events on shutdown", e);
+                    kept = false;
+                }
+                if (kept) {
+                    spooled += batch.size();
+                } else {
+                    dropped += batch.size();
+                    metrics.batchFailed(batch.size());
+                }
+            }
+            logger.warn("Timed out waiting for the sender on shutdown, " + spooled + " events were spooled and "
+                    + dropped + " were not sent");
+        }
+
+        /**
+         * @return false once stopped and shutdownTimeout has passed without a
+         *         slot becoming free
+         */
+        private boolean acquireInFlightSlot() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        if (inFlight.tryAcquire(STOP_POLL_NANOS, TimeUnit.NANOSECONDS)) {
+                            return true;
+                        }
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        stop();
+                    }
+                    if (stop && System.nanoTime() - stopDeadline >= 0) {
+                        return false;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void awaitInFlightBatches() {
+            try {
+                long remaining = Math.max(0, stopDeadline - System.nanoTime());
+                if (inFlight.tryAcquire(maxInFlightBatches, remaining, TimeUnit.NANOSECONDS)) {
+                    inFlight.release(maxInFlightBatches);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            logger.warn("Timed out waiting for the sender on shutdown, "
+                    + (maxInFlightBatches - inFlight.availablePermits()) + " batches may not have been sent");
+        }
+
+        private List<PostHogEvent> retrieveBatch() {
+            if (queue.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<PostHogEvent> batch = new ArrayList<PostHogEvent>(Math.min(queue.size(), maxQueueSize));
+            queue.drainTo(batch, maxQueueSize);
+            signalNotFull();
+            metrics.batchDequeued(batch.size(), queue.size());
+            return batch;
+        }
+
+        private void awaitFirstEvent() {
+            idle = true;
+            while (!stop && queue.isEmpty()) {
+                LockSupport.park(this);
+                stopIfInterrupted();
+            }
+            idle = false;
+        }
+
+        private void awaitFullBatch() {
+            // the batch window starts once the first event is seen
+            long deadline = System.nanoTime() + maxTimeInQueue.toNanos();
+            long remaining = maxTimeInQueue.toNanos();
+            while (!stop && remaining > 0 && queue.size() < maxQueueSize) {
+                LockSupport.parkNanos(this, remaining);
+                stopIfInterrupted();
+                remaining = deadline - System.nanoTime();
+            }
+        }
+
+        private void awaitSender() {
+            while (!stop && !sender.isAvailable()) {
+                LockSupport.parkNanos(this, SENDER_UNAVAILABLE_POLL_NANOS);
+                stopIfInterrupted();
+            }
+        }
+
+        @Override
+        public void run() {
+            consumer = Thread.currentThread();
+            while (!stop) {
+                awaitFirstEvent();
+                awaitFullBatch();
+                awaitSender();
                 sendAll();
             }
+            sendAll();
+            awaitInFlightBatches();
+            consumer = null;
         }
-        sendAll();
     }
 }
@@ -0,0 +1,126 @@
+package com.posthog.java;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer ring buffer.
+ *
+ * Slots are pre-allocated and each carries a sequence number, producers claim a
+ * slot by CAS on the tail sequence and publish it by bumping the slot sequence,
+ * so adding an event never takes a lock or allocates a node. The head is
+ * claimed the same way: the QueueManager is normally the only consumer, but
+ * producers applying an overflow policy may also poll when the buffer is full.
+ */
+class RingBuffer<E> {
+    private final int capacity;
+    private final int mask;
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    RingBuffer(int requestedCapacity) {
+        if (requestedCapacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + requestedCapacity);
+        }
+        this.capacity = roundUpToPowerOfTwo(requestedCapacity);
+        this.mask = capacity - 1;
+        this.slots = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        if (value > (1 << 30)) {
+            throw new IllegalArgumentException("capacity too large: " + value);
+        }
+        if (value < 2) {
+            // with a single slot a published and a consumed slot carry the same sequence
+            return 2;
+        }
+        int highest = Integer.highestOneBit(value);
+        return highest == value ? value : highest << 1;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return false if the buffer is full and the element was not added
+     */
+    boolean offer(E element) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = element;
+                    // publishes the slot write to the consumer
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            // another producer claimed this position first, reload the tail
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    E poll() {
+        while (true) {
+            long position = head.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = (E) slots[index];
+                    slots[index] = null;
+                    // hands the slot back to producers one lap later
+                    sequences.set(index, position + capacity);
+                    return element;
+                }
+            } else if (difference < 0) {
+                // empty, or the producer that claimed this slot has not published yet
+                return null;
+            }
+            // another consumer took this position first, reload the head
+        }
+    }
+
+    /**
+     * Moves up to maxElements elements into the target collection.
+     *
+     * @return the number of elements moved
+     */
+    int drainTo(Collection<? super E> target, int maxElements) {
+        int drained = 0;
+        while (drained < maxElements) {
+            E element = poll();
+            if (element == null) {
+                break;
+            }
+            target.add(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    int size() {
+        // read head before tail so that the difference can never be negative,
+        // claimed but not yet published slots are counted
+        long currentHead = head.get();
+        long size = tail.get() - currentHead;
+        return (int) Math.min(size, capacity);
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -1,10 +1,83 @@
 package com.posthog.java;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.json.JSONObject;
 
 public interface Sender {
     public Boolean send(List<JSONObject> events);
     public JSONObject post(String route, String distinctId);
+
+    /**
+     * Sends the events without blocking the calling thread. Senders that can't
+     * do asynchronous I/O fall back to sending on the calling thread.
+     *
+     * @return a future completed with the same value {@link #send(List)} returns
+     */
+    public default CompletableFuture<Boolean> sendAsync(List<JSONObject> events) {
+        return CompletableFuture.completedFuture(send(events));
+    }
+
+    /**
+     * Sends queued events. By default they are converted to JSON and passed to
+     * {@link #send(List)}, senders may override this to serialize them directly.
+     */
+    public default Boolean sendEvents(List<PostHogEvent> events) {
+        return send(PostHogEvent.toJson(events));
+    }
+
+    /**
+     * Asynchronous variant of {@link #sendEvents(List)}, by default converts the
+     * events to JSON and passes them to {@link #sendAsync(List)}.
+     */
+    public default CompletableFuture<Boolean> sendEventsAsync(List<PostHogEvent> events) {
+        return sendAsync(PostHogEvent.toJson(events));
+    }
+
+    /**
+     * Keeps events the queue could not hand over before its shutdown timeout,
+     * for senders with durable storage to send after a restart.
+     *
+     * @return false if the events were dropped, as they are by default
+     */
+    public default boolean spool(List<PostHogEvent> events) {
+        return false;
+    }
+
+    /**
+     * @return false while the sender knows requests would fail, the queue then
+     *         holds on to events (applying its overflow policy) instead of
+     *         handing them over
+     */
+    public default boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Calls the API without blocking the calling thread. Senders that can't do
+     * asynchronous I/O fall back to calling {@link #post(String, String)} on the
+     * calling thread.
+     */
+    public default CompletableFuture<JSONObject> postAsync(String route, String distinctId) {
+        return CompletableFuture.completedFuture(post(route, distinctId));
+    }
+
+    /**
+     * Fetches the feature flag definitions used for local evaluation.
+     *
+     * @return the definitions, or null if they couldn't be loaded or the sender
+     *         doesn't support local evaluation
+     */
+    public default JSONObject getFeatureFlagDefinitions(String personalApiKey) {
+        return null;
+    }
+
+    /**
+     * Releases threads and connections, called by {@link PostHog#shutdown()}
+     * once the queue has been sent for senders it created.
+     */
+    public default void close() {
+    }
+
 }
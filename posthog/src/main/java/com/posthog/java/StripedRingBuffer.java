@@ -0,0 +1,138 @@
+package com.posthog.java;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link RingBuffer} split into stripes, so that producer threads add to
+ * different tails instead of all contending on one. Each thread offers to its
+ * own stripe and only moves on to the others when that stripe is full, the
+ * consumer drains all stripes. Elements added by one thread are taken in the
+ * order they were added as long as its stripe has room, elements of different
+ * threads may be interleaved differently than they were added. Like the
+ * RingBuffer, all methods may be called from any thread.
+ *
+ * With a single stripe this behaves exactly like a RingBuffer.
+ */
+class StripedRingBuffer<E> {
+    private final RingBuffer<E>[] stripes;
+    private final int mask;
+    // stripe to start taking from, rotated so every stripe gets a turn at the
+    // front of a batch. Producers take too, for overflow policies that evict or
+    // send queued events.
+    private final AtomicInteger drainStart = new AtomicInteger();
+
+    @SuppressWarnings("unchecked")
+    StripedRingBuffer(int capacity, int requestedStripes) {
+        if (requestedStripes < 1) {
+            throw new IllegalArgumentException("stripes must be positive: " + requestedStripes);
+        }
+        int stripeCount = Integer.highestOneBit(requestedStripes);
+        if (stripeCount != requestedStripes) {
+            stripeCount <<= 1;
+        }
+        this.stripes = new RingBuffer[stripeCount];
+        this.mask = stripeCount - 1;
+        // capacity is shared out between the stripes
+        int stripeCapacity = (capacity + stripeCount - 1) / stripeCount;
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new RingBuffer<E>(stripeCapacity);
+        }
+    }
+
+    int stripes() {
+        return stripes.length;
+    }
+
+    int capacity() {
+        return stripes[0].capacity() * stripes.length;
+    }
+
+    private int stripeIndex() {
+        // thread ids are handed out sequentially, so threads started together
+        // get different stripes
+        return (int) Thread.currentThread().getId() & mask;
+    }
+
+    /**
+     * @return false if all stripes are full and the element was not added
+     */
+    boolean offer(E element) {
+        if (stripes.length == 1) {
+            return stripes[0].offer(element);
+        }
+        int own = stripeIndex();
+        if (stripes[own].offer(element)) {
+            return true;
+        }
+        for (int i = 1; i < stripes.length; i++) {
+            if (stripes[(own + i) & mask].offer(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the head of the first non-empty stripe. With more than one
+     *         stripe this is the oldest element of that stripe, not necessarily
+     *         the oldest element overall.
+     */
+    E poll() {
+        int start = drainStart.get();
+        for (int i = 0; i < stripes.length; i++) {
+            E element = stripes[(start + i) & mask].poll();
+            if (element != null) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves up to maxElements elements, taken from all stripes, into the target
+     * collection.
+     *
+     * @return the number of elements moved
+     */
+    int drainTo(Collection<? super E> target, int maxElements) {
+        int start = drainStart.getAndIncrement();
+        int drained = 0;
+        for (int i = 0; i < stripes.length && drained < maxElements; i++) {
+            drained += stripes[(start + i) & mask].drainTo(target, maxElements - drained);
+        }
+        return drained;
+    }
+
+    int size() {
+        int size = 0;
+        for (RingBuffer<E> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    boolean isEmpty() {
+        for (RingBuffer<E> stripe : stripes) {
+            if (!stripe.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether at least threshold elements are waiting, stops counting once it
+     * has seen enough.
+     */
+    boolean sizeAtLeast(int threshold) {
+        int size = 0;
+        for (RingBuffer<E> stripe : stripes) {
+            size += stripe.size();
+            if (size >= threshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,20 @@
+package com.posthog.java;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Threading defaults that depend on the Java version. The jar is multi-release:
+ * on Java 21 and newer the version in src/main/java21 is used instead.
+ */
+final class Threads {
+    private Threads() {
+    }
+
+    /**
+     * @return the executor that runs HTTP calls when none was configured, null
+     *         to leave it to OkHttp's own thread pool
+     */
+    static ExecutorService defaultSenderExecutor() {
+        return null;
+    }
+}
@@ -0,0 +1,84 @@
+package com.posthog.java;
+
+import java.io.IOException;
+import java.time.Instant;
+
+/**
+ * Formats instants exactly like {@link Instant#toString()}. The date and time
+ * up to the second are cached, since the events of a batch are mostly
+ * captured within the same second, and only the fraction is formatted per
+ * event.
+ */
+final class TimestampFormatter {
+    // instants before this are formatted by Instant.toString(), as is the year 10000 onwards
+    private static final long MIN_SECOND = 0;
+    private static final long MAX_SECOND = 253402300799L; // 9999-12-31T23:59:59Z
+
+    private static final class CachedSecond {
+        final long epochSecond;
+        final String prefix; // e.g. 2020-02-02T02:02:02
+
+        CachedSecond(long epochSecond) {
+            this.epochSecond = epochSecond;
+            String formatted = Instant.ofEpochSecond(epochSecond).toString();
+            this.prefix = formatted.substring(0, formatted.length() - 1); // strip Z
+        }
+    }
+
+    private static volatile CachedSecond cached = new CachedSecond(0);
+
+    private TimestampFormatter() {
+    }
+
+    static String format(Instant instant) {
+        StringBuilder builder = new StringBuilder(30);
+        try {
+            formatTo(instant, builder);
+        } catch (IOException e) {
+            // appending to a StringBuilder does not fail
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+    static void formatTo(Instant instant, Appendable out) throws IOException {
+        long second = instant.getEpochSecond();
+        if (second < MIN_SECOND || second > MAX_SECOND) {
+            out.append(instant.toString());
+            return;
+        }
+        CachedSecond current = cached;
+        if (current.epochSecond != second) {
+            current = new CachedSecond(second);
+            cached = current;
+        }
+        out.append(current.prefix);
+        int nanos = instant.getNano();
+        if (nanos != 0) {
+            // like Instant.toString(), digits are printed in groups of three
+            out.append('.');
+            if (nanos % 1_000_000 == 0) {
+                appendDigits(out, nanos / 1_000_000, 3);
+            } else if (nanos % 1_000 == 0) {
+                appendDigits(out, nanos / 1_000, 6);
+            } else {
+                appendDigits(out, nanos, 9);
+            }
+        }
+        out.append('Z');
+    }
+
+    private static void appendDigits(Appendable out, int value, int digits) throws IOException {
+        for (int divisor = pow10(digits - 1); divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + value / divisor % 10));
+        }
+    }
+
+    private static int pow10(int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= 10;
+        }
+        return result;
+    }
+}
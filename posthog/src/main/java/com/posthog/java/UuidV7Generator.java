@@ -0,0 +1,23 @@
+package com.posthog.java;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * UUID version 7 (RFC 9562): 48 bits of Unix time in milliseconds followed by
+ * 74 random bits. The randomness comes from ThreadLocalRandom, which doesn't
+ * contend between threads or wait for entropy; the ids only need to be unique,
+ * not unpredictable.
+ */
+class UuidV7Generator implements IdGenerator {
+    private static final long VERSION = 0x7000L;
+    private static final long VARIANT = 0x8000000000000000L;
+
+    @Override
+    public UUID generate() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long mostSigBits = (System.currentTimeMillis() << 16) | VERSION | (random.nextInt() & 0x0fff);
+        long leastSigBits = VARIANT | (random.nextLong() >>> 2);
+        return new UUID(mostSigBits, leastSigBits);
+    }
+}
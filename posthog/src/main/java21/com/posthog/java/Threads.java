@@ -0,0 +1,20 @@
+package com.posthog.java;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Java 21+ version of the threading defaults, see src/main/java.
+ */
+final class Threads {
+    private Threads() {
+    }
+
+    /**
+     * @return an executor starting a virtual thread per HTTP call, so that calls
+     *         blocked on the network don't each hold on to a platform thread
+     */
+    static ExecutorService defaultSenderExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("PostHog HttpSender ", 0).factory());
+    }
+}
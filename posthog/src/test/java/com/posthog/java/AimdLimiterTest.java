@@ -0,0 +1,44 @@
+package com.posthog.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AimdLimiterTest {
+
+    @Test
+    public void testLimitsConcurrentRequests() {
+        AimdLimiter limiter = new AimdLimiter(2);
+        limiter.onRequestStart();
+        assertTrue(limiter.isAvailable());
+        limiter.onRequestStart();
+        assertFalse(limiter.isAvailable());
+        limiter.onRequestEnd();
+        assertTrue(limiter.isAvailable());
+    }
+
+    @Test
+    public void testHalvesOnPushbackAndGrowsBackOnSuccess() throws InterruptedException {
+        AimdLimiter limiter = new AimdLimiter(8);
+        limiter.onPushback(20);
+        assertEquals(4, limiter.limit());
+        assertFalse(limiter.isAvailable());
+        Thread.sleep(40);
+        assertTrue(limiter.isAvailable());
+
+        limiter.onPushback(0);
+        limiter.onPushback(0);
+        limiter.onPushback(0);
+        assertEquals(1, limiter.limit());
+
+        // additive increase: one more slot after about limit successes
+        limiter.onSuccess();
+        assertEquals(2, limiter.limit());
+        limiter.onSuccess();
+        limiter.onSuccess();
+        limiter.onSuccess();
+        assertEquals(3, limiter.limit());
+    }
+}
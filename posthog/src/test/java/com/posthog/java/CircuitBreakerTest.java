@@ -0,0 +1,59 @@
+package com.posthog.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, Duration.ofMinutes(1));
+        assertEquals(0, breaker.nanosUntilProbe());
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.isAvailable());
+        assertTrue(breaker.nanosUntilProbe() > 0);
+        assertTrue(breaker.nanosUntilProbe() <= Duration.ofMinutes(1).toNanos());
+    }
+
+    @Test
+    public void testSingleProbeAfterProbeInterval() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofMillis(20));
+        breaker.recordFailure();
+        Thread.sleep(40);
+
+        assertTrue(breaker.isAvailable());
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        assertFalse(breaker.allowRequest());
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testFailedProbeReopens() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofMillis(20));
+        breaker.recordFailure();
+        Thread.sleep(40);
+        assertTrue(breaker.allowRequest());
+
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        assertFalse(breaker.allowRequest());
+    }
+}
@@ -0,0 +1,161 @@
+package com.posthog.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import okio.ByteString;
+
+public class DiskSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private final List<DiskSpool> spools = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        directory = folder.getRoot().toPath().resolve("spool");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (DiskSpool spool : spools) {
+            spool.close();
+        }
+        folder.delete();
+    }
+
+    private DiskSpool open(long maxBytes) throws IOException {
+        DiskSpool spool = DiskSpool.open(directory, maxBytes, FsyncPolicy.ALWAYS, new DefaultPostHogLogger());
+        spools.add(spool);
+        return spool;
+    }
+
+    private File[] segments() {
+        return directory.toFile().listFiles((dir, name) -> name.startsWith("segment-"));
+    }
+
+    private static List<ByteString> batch(String... events) {
+        ByteString[] bytes = new ByteString[events.length];
+        for (int i = 0; i < events.length; i++) {
+            bytes[i] = ByteString.encodeUtf8(events[i]);
+        }
+        return Arrays.asList(bytes);
+    }
+
+    private static String first(DiskSpool.Batch batch) {
+        return batch.events.get(0).utf8();
+    }
+
+    @Test
+    public void testBatchesReadInOrderUntilCommitted() throws IOException {
+        DiskSpool spool = open(1024 * 1024);
+        spool.append(batch("{\"a\":1}", "{\"a\":2}"));
+        spool.append(batch("{\"b\":1}"));
+
+        DiskSpool.Batch batch = spool.peek();
+        assertEquals(batch("{\"a\":1}", "{\"a\":2}"), batch.events);
+        assertEquals("{\"a\":1}", first(spool.peek()));
+
+        spool.commit(batch);
+        assertEquals("{\"b\":1}", first(spool.peek()));
+        spool.commit(spool.peek());
+        assertNull(spool.peek());
+        assertTrue(spool.isEmpty());
+        assertEquals(0, segments().length);
+    }
+
+    @Test
+    public void testBatchesSurviveReopening() throws IOException {
+        DiskSpool spool = open(1024 * 1024);
+        spool.append(batch("{\"a\":1}"));
+        spool.append(batch("{\"b\":1}"));
+        spool.commit(spool.peek());
+        spool.close();
+
+        DiskSpool reopened = open(1024 * 1024);
+        assertEquals("{\"b\":1}", first(reopened.peek()));
+        reopened.append(batch("{\"c\":1}"));
+        reopened.commit(reopened.peek());
+        assertEquals("{\"c\":1}", first(reopened.peek()));
+    }
+
+    @Test
+    public void testOldestSegmentsDroppedWhenFull() throws IOException {
+        // each record is 8 bytes of header, 4 of count, 4 of length and 19 of event
+        DiskSpool spool = open(100);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(spool.append(batch(String.format("{\"event\":\"%07d\"}", i))));
+        }
+
+        assertTrue(spool.sizeBytes() <= 100);
+        assertEquals("{\"event\":\"0000003\"}", first(spool.peek()));
+        assertFalse(spool.append(batch(new String(new char[100]))));
+    }
+
+    @Test
+    public void testTornRecordIsSkipped() throws IOException {
+        DiskSpool spool = open(1024 * 1024);
+        spool.append(batch("{\"a\":1}"));
+        spool.append(batch("{\"b\":1}"));
+        spool.close();
+
+        File segment = segments()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        DiskSpool reopened = open(1024 * 1024);
+        DiskSpool.Batch batch = reopened.peek();
+        assertEquals("{\"a\":1}", first(batch));
+        reopened.commit(batch);
+        assertNull(reopened.peek());
+    }
+
+    @Test
+    public void testDirectoryLockedWhileOpen() throws IOException {
+        DiskSpool spool = open(1024 * 1024);
+        try {
+            open(1024 * 1024);
+            fail("expected the directory to be locked");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("in use"));
+        }
+
+        spool.close();
+        open(1024 * 1024);
+    }
+
+    @Test
+    public void testAppendAfterCloseFails() throws IOException {
+        DiskSpool spool = open(1024 * 1024);
+        spool.append(batch("{\"a\":1}"));
+        spool.close();
+
+        try {
+            spool.append(batch("{\"b\":1}"));
+            fail("expected the closed spool to refuse the batch");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("closed"));
+        }
+        assertEquals(1, segments().length);
+    }
+}
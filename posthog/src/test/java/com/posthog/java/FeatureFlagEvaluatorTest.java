@@ -0,0 +1,118 @@
+package com.posthog.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class FeatureFlagEvaluatorTest {
+
+    private static FeatureFlagEvaluator evaluator(String flag) {
+        return new FeatureFlagEvaluator(new JSONObject("{\"flags\": [" + flag + "]}"));
+    }
+
+    private static Map<String, Object> properties(String key, Object value) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(key, value);
+        return properties;
+    }
+
+    @Test
+    public void testHashMatchesServer() {
+        assertEquals(0.4641306410277104, FeatureFlagEvaluator.hash("simple-flag", "some_distinct_id", ""), 1e-15);
+    }
+
+    @Test
+    public void testRolloutPercentage() throws InconclusiveMatchException {
+        FeatureFlagEvaluator evaluator = evaluator("{\"key\": \"simple-flag\", \"active\": true, "
+                + "\"filters\": {\"groups\": [{\"properties\": [], \"rollout_percentage\": 45}]}}");
+
+        List<Boolean> results = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            results.add(Boolean.parseBoolean(evaluator.getFeatureFlag("simple-flag", "distinct_id_" + i, null)));
+        }
+
+        assertEquals(Arrays.asList(false, true, true, false, true, false, false, true, false, true, false, true,
+                true, false, true, false, false, false, true, true), results);
+    }
+
+    @Test
+    public void testMultivariateVariants() throws InconclusiveMatchException {
+        FeatureFlagEvaluator evaluator = evaluator("{\"key\": \"multivariate-flag\", \"active\": true, "
+                + "\"filters\": {\"groups\": [{\"properties\": [], \"rollout_percentage\": 100}], "
+                + "\"multivariate\": {\"variants\": ["
+                + "{\"key\": \"first\", \"rollout_percentage\": 50}, {\"key\": \"second\", \"rollout_percentage\": 20}, "
+                + "{\"key\": \"third\", \"rollout_percentage\": 20}, {\"key\": \"fourth\", \"rollout_percentage\": 5}, "
+                + "{\"key\": \"fifth\", \"rollout_percentage\": 5}]}}}");
+
+        List<String> results = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            results.add(evaluator.getFeatureFlag("multivariate-flag", "distinct_id_" + i, null));
+        }
+
+        assertEquals(Arrays.asList("second", "second", "first", "first", "second", "second", "first", "first",
+                "second", "fifth", "first", "third"), results);
+    }
+
+    @Test
+    public void testVariantOverrideConditionEvaluatedFirst() throws InconclusiveMatchException {
+        FeatureFlagEvaluator evaluator = evaluator("{\"key\": \"flag\", \"active\": true, \"filters\": {\"groups\": ["
+                + "{\"properties\": [], \"rollout_percentage\": 100}, "
+                + "{\"properties\": [{\"key\": \"email\", \"value\": \"test@posthog.com\"}], \"variant\": \"second\"}], "
+                + "\"multivariate\": {\"variants\": [{\"key\": \"first\", \"rollout_percentage\": 100}, "
+                + "{\"key\": \"second\", \"rollout_percentage\": 0}]}}}");
+
+        assertEquals("second", evaluator.getFeatureFlag("flag", "id", properties("email", "test@posthog.com")));
+        assertEquals("first", evaluator.getFeatureFlag("flag", "id", properties("email", "other@posthog.com")));
+    }
+
+    @Test
+    public void testPropertyOperators() throws InconclusiveMatchException {
+        String flag = "{\"key\": \"flag\", \"active\": true, \"filters\": {\"groups\": [{\"properties\": "
+                + "[{\"key\": \"%s\", \"operator\": \"%s\", \"value\": %s}], \"rollout_percentage\": 100}]}}";
+
+        assertEquals("true", evaluator(String.format(flag, "plan", "exact", "[\"pro\", \"team\"]"))
+                .getFeatureFlag("flag", "id", properties("plan", "Team")));
+        assertEquals("false", evaluator(String.format(flag, "plan", "is_not", "\"pro\""))
+                .getFeatureFlag("flag", "id", properties("plan", "pro")));
+        assertEquals("true", evaluator(String.format(flag, "email", "icontains", "\"POSTHOG\""))
+                .getFeatureFlag("flag", "id", properties("email", "max@posthog.com")));
+        assertEquals("true", evaluator(String.format(flag, "email", "regex", "\".+@posthog\\\\.com$\""))
+                .getFeatureFlag("flag", "id", properties("email", "max@posthog.com")));
+        assertEquals("true", evaluator(String.format(flag, "age", "gte", "18"))
+                .getFeatureFlag("flag", "id", properties("age", 18)));
+        assertEquals("false", evaluator(String.format(flag, "age", "lt", "18"))
+                .getFeatureFlag("flag", "id", properties("age", 30)));
+    }
+
+    @Test(expected = InconclusiveMatchException.class)
+    public void testMissingPropertyIsInconclusive() throws InconclusiveMatchException {
+        evaluator("{\"key\": \"flag\", \"active\": true, \"filters\": {\"groups\": [{\"properties\": "
+                + "[{\"key\": \"plan\", \"value\": \"pro\"}], \"rollout_percentage\": 100}]}}")
+                .getFeatureFlag("flag", "id", properties("email", "max@posthog.com"));
+    }
+
+    @Test(expected = InconclusiveMatchException.class)
+    public void testCohortIsInconclusive() throws InconclusiveMatchException {
+        evaluator("{\"key\": \"flag\", \"active\": true, \"filters\": {\"groups\": [{\"properties\": "
+                + "[{\"key\": \"id\", \"value\": 1, \"type\": \"cohort\"}], \"rollout_percentage\": 100}]}}")
+                .getFeatureFlag("flag", "id", null);
+    }
+
+    @Test
+    public void testInactiveFlagAndPayload() throws InconclusiveMatchException {
+        FeatureFlagEvaluator evaluator = evaluator("{\"key\": \"flag\", \"active\": false, \"filters\": {"
+                + "\"groups\": [{\"rollout_percentage\": 100}], \"payloads\": {\"true\": \"{\\\"a\\\": 1}\"}}}");
+
+        assertEquals("false", evaluator.getFeatureFlag("flag", "id", null));
+        assertNull(evaluator.getFeatureFlagPayload("flag", "false"));
+        assertEquals("{\"a\": 1}", evaluator.getFeatureFlagPayload("flag", "true"));
+    }
+}
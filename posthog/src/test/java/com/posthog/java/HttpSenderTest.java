@@ -1,29 +1,56 @@
 package com.posthog.java;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static net.javacrumbs.jsonunit.assertj.JsonAssertions.assertThatJson;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import okhttp3.OkHttpClient;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
 import okhttp3.mockwebserver.SocketPolicy;
+import okio.GzipSource;
+import okio.Okio;
 
 public class HttpSenderTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     public MockWebServer mockWebServer;
     private HttpSender sender;
     private String apiKey = "UNIT_TESTING_API_KEY";
+    private String host;
 
     @Before
     public void setUp() throws IOException {
@@ -31,15 +58,22 @@ public class HttpSenderTest {
         mockWebServer.start();
 
         String httpUrl = mockWebServer.url("").toString();
-        String host = httpUrl.substring(0, httpUrl.length() - 1); // strip trailing /
+        host = httpUrl.substring(0, httpUrl.length() - 1); // strip trailing /
         sender = new HttpSender.Builder(apiKey).host(host).maxRetries(1).build();
     }
 
     @After
     public void tearDown() throws IOException {
+        // releases the spool directory before it is deleted
+        sender.close();
+        folder.delete();
         mockWebServer.shutdown();
     }
 
+    private static int segments(Path spoolDirectory) {
+        return spoolDirectory.toFile().list((dir, name) -> name.startsWith("segment-")).length;
+    }
+
     @Test
     public void testEmpty() {
         sender.send(Collections.emptyList());
@@ -76,6 +110,169 @@ public class HttpSenderTest {
                 .isEqualTo(request.getBody().readUtf8());
     }
 
+    private HttpSender gzipSender(int compressionThreshold) {
+        return new HttpSender.Builder(apiKey).host(host).maxRetries(1).compression(Compression.GZIP)
+                .compressionThreshold(compressionThreshold).build();
+    }
+
+    @Test
+    public void testGzipCompressesBatch() throws IOException, InterruptedException {
+        mockWebServer.enqueue(new MockResponse());
+        List<JSONObject> input = new ArrayList<JSONObject>();
+        for (int i = 0; i < 100; i++) {
+            input.add(new JSONObject().put("event", "movie played").put("distinct_id", "id" + i));
+        }
+        Boolean success = gzipSender(0).send(input);
+        assertEquals(true, success);
+
+        RecordedRequest request = mockWebServer.takeRequest();
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+        assertTrue(request.getBodySize() < input.toString().length());
+        String decoded = Okio.buffer(new GzipSource(request.getBody())).readUtf8();
+        JSONObject body = new JSONObject(decoded);
+        assertEquals(apiKey, body.getString("api_key"));
+        assertEquals(100, body.getJSONArray("batch").length());
+        assertEquals("id99", body.getJSONArray("batch").getJSONObject(99).getString("distinct_id"));
+    }
+
+    @Test
+    public void testGzipSkippedBelowThreshold() throws InterruptedException {
+        mockWebServer.enqueue(new MockResponse());
+        JSONObject json = new JSONObject("{'key': 'value'}");
+        List<JSONObject> input = new ArrayList<JSONObject>();
+        input.add(json);
+        gzipSender(1024).send(input);
+
+        RecordedRequest request = mockWebServer.takeRequest();
+        assertEquals(null, request.getHeader("Content-Encoding"));
+        assertThatJson("{\"api_key\":\"UNIT_TESTING_API_KEY\",\"batch\":[{\"key\":\"value\"}]}")
+                .isEqualTo(request.getBody().readUtf8());
+    }
+
+    @Test
+    public void testGzipBodyIsReplayedOnRetry() throws IOException, InterruptedException {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        mockWebServer.enqueue(new MockResponse());
+        JSONObject json = new JSONObject("{'key': 'value'}");
+        List<JSONObject> input = new ArrayList<JSONObject>();
+        input.add(json);
+        assertEquals(true, gzipSender(0).send(input));
+
+        mockWebServer.takeRequest();
+        RecordedRequest retried = mockWebServer.takeRequest();
+        assertEquals("gzip", retried.getHeader("Content-Encoding"));
+        assertThatJson("{\"api_key\":\"UNIT_TESTING_API_KEY\",\"batch\":[{\"key\":\"value\"}]}")
+                .isEqualTo(Okio.buffer(new GzipSource(retried.getBody())).readUtf8());
+    }
+
+    @Test
+    public void testSendEventsSerializesOnSend() throws InterruptedException {
+        mockWebServer.enqueue(new MockResponse());
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("movie_id", 123);
+        properties.put("$set", Collections.singletonMap("email", "john@doe.com"));
+        PostHogEvent event = new PostHogEvent(UUID.randomUUID(), Instant.parse("2020-02-02T02:02:02.123Z"),
+                "test id", "movie \"played\"", properties);
+        assertEquals(true, sender.sendEvents(Collections.singletonList(event)));
+
+        RecordedRequest request = mockWebServer.takeRequest();
+        JSONObject body = new JSONObject(request.getBody().readUtf8());
+        assertThatJson(event.toJson().toString()).isEqualTo(body.getJSONArray("batch").getJSONObject(0).toString());
+        assertThatJson("{\"distinct_id\":\"test id\",\"event\":\"movie \\\"played\\\"\",\"$lib\":\"posthog-java\","
+                + "\"timestamp\":\"2020-02-02T02:02:02.123Z\","
+                + "\"properties\":{\"movie_id\":123,\"$set\":{\"email\":\"john@doe.com\"}}}")
+                .isEqualTo(new JSONObject(body.getJSONArray("batch").getJSONObject(0), "distinct_id", "event", "$lib",
+                        "timestamp", "properties").toString());
+    }
+
+    @Test
+    public void testSkipsEventsThatFailToSerialize() throws InterruptedException {
+        mockWebServer.enqueue(new MockResponse());
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(null, "no key");
+        PostHogEvent broken = new PostHogEvent(UUID.randomUUID(), Instant.now(), "test id", "broken", properties);
+        PostHogEvent event = new PostHogEvent(UUID.randomUUID(), Instant.now(), "test id", "movie played",
+                Collections.singletonMap("movie_id", 123));
+        assertEquals(true, sender.sendEvents(Arrays.asList(broken, event)));
+
+        RecordedRequest request = mockWebServer.takeRequest();
+        JSONArray batch = new JSONObject(request.getBody().readUtf8()).getJSONArray("batch");
+        assertEquals(1, batch.length());
+        assertEquals("movie played", batch.getJSONObject(0).getString("event"));
+    }
+
+    @Test
+    public void testSendEventsWritesPropertiesJson() throws InterruptedException {
+        mockWebServer.enqueue(new MockResponse());
+        PostHogEvent event = new PostHogEvent(UUID.randomUUID(), Instant.parse("2020-02-02T02:02:02.123Z"),
+                "test id", "movie played", "{\"movie_id\":123,\"subtitles\":true}");
+        assertEquals(true, sender.sendEvents(Collections.singletonList(event)));
+
+        RecordedRequest request = mockWebServer.takeRequest();
+        JSONObject body = new JSONObject(request.getBody().readUtf8());
+        assertThatJson(event.toJson().toString()).isEqualTo(body.getJSONArray("batch").getJSONObject(0).toString());
+        assertThatJson("{\"movie_id\":123,\"subtitles\":true}")
+                .isEqualTo(body.getJSONArray("batch").getJSONObject(0).getJSONObject("properties").toString());
+    }
+
+    @Test
+    public void testSplitsBatchesLargerThanMaxBatchSize() throws InterruptedException {
+        // the 45 byte envelope plus two of these 16 byte events fit in 90 bytes,
+        // three don't
+        HttpSender smallBatchSender = new HttpSender.Builder(apiKey).host(host).maxBatchSizeBytes(90).build();
+        List<JSONObject> input = new ArrayList<JSONObject>();
+        for (int i = 0; i < 5; i++) {
+            input.add(new JSONObject().put("key", "value" + i));
+        }
+        for (int i = 0; i < 3; i++) {
+            mockWebServer.enqueue(new MockResponse());
+        }
+        assertEquals(true, smallBatchSender.send(input));
+
+        assertEquals(3, mockWebServer.getRequestCount());
+        int sent = 0;
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest request = mockWebServer.takeRequest();
+            assertTrue(request.getBodySize() <= 90);
+            sent += new JSONObject(request.getBody().readUtf8()).getJSONArray("batch").length();
+        }
+        assertEquals(5, sent);
+    }
+
+    @Test
+    public void testSplitsBatchInHalfOn413() throws InterruptedException {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(413));
+        mockWebServer.enqueue(new MockResponse());
+        mockWebServer.enqueue(new MockResponse());
+        List<JSONObject> input = new ArrayList<JSONObject>();
+        for (int i = 0; i < 4; i++) {
+            input.add(new JSONObject().put("key", "value" + i));
+        }
+        assertEquals(true, sender.send(input));
+
+        assertEquals(4, new JSONObject(mockWebServer.takeRequest().getBody().readUtf8()).getJSONArray("batch")
+                .length());
+        int sent = 0;
+        for (int i = 0; i < 2; i++) {
+            int batchLength = new JSONObject(mockWebServer.takeRequest().getBody().readUtf8())
+                    .getJSONArray("batch").length();
+            assertEquals(2, batchLength);
+            sent += batchLength;
+        }
+        assertEquals(4, sent);
+    }
+
+    @Test
+    public void testGivesUpOn413ForSingleEvent() throws InterruptedException {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(413));
+        mockWebServer.enqueue(new MockResponse());
+        JSONObject json = new JSONObject("{'key': 'value'}");
+        List<JSONObject> input = new ArrayList<JSONObject>();
+        input.add(json);
+        assertEquals(false, sender.send(input));
+        assertEquals(1, mockWebServer.getRequestCount());
+    }
+
     @Test
     public void testHandlesInitial503ErrorWithRetry() throws InterruptedException {
         // 503 is a server error, so we should retry
@@ -88,6 +285,38 @@ public class HttpSenderTest {
         assertEquals(success, true);
     }
 
+    @Test
+    public void testSendAsyncSchedulesRetryWithoutBlocking() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        mockWebServer.enqueue(new MockResponse());
+        JSONObject json = new JSONObject("{'key': 'value'}");
+        List<JSONObject> input = new ArrayList<JSONObject>();
+        input.add(json);
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> future = sender.sendAsync(input);
+        // the first retry waits 1.5s with up to half of it taken off as jitter,
+        // so at least 750ms
+        assertFalse(future.isDone());
+        assertEquals(true, future.get(10, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 750);
+        assertEquals(2, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void testStreamedBodyIsReplayedOnRetry() throws InterruptedException {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        mockWebServer.enqueue(new MockResponse());
+        List<JSONObject> input = new ArrayList<JSONObject>();
+        input.add(new JSONObject("{'key': 'value', 'nested': {'list': [1, 2, 3]}}"));
+        input.add(new JSONObject("{'key2': 'value \u00e9'}"));
+        assertEquals(true, sender.send(input));
+
+        String expected = "{\"api_key\":\"UNIT_TESTING_API_KEY\",\"batch\":"
+                + "[{\"key\":\"value\",\"nested\":{\"list\":[1,2,3]}},{\"key2\":\"value \u00e9\"}]}";
+        assertThatJson(expected).isEqualTo(mockWebServer.takeRequest().getBody().readUtf8());
+        assertThatJson(expected).isEqualTo(mockWebServer.takeRequest().getBody().readUtf8());
+    }
+
     @Test
     public void testOnlyMakesOneRequestOnSuccess() throws InterruptedException {
         // 200 is a success, so we should not retry
@@ -187,5 +416,303 @@ public class HttpSenderTest {
         assertEquals(null, result);
     }
 
+    @Test
+    public void testConcurrentPostsShareOneRequest() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setBody("{\"featureFlags\": {}}").setBodyDelay(300,
+                TimeUnit.MILLISECONDS));
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(5);
+        List<CompletableFuture<JSONObject>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return sender.post("/decide", "1");
+            }, callers));
+        }
+        start.countDown();
+
+        for (CompletableFuture<JSONObject> result : results) {
+            assertEquals(results.get(0).get(5, TimeUnit.SECONDS), result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, mockWebServer.getRequestCount());
+        callers.shutdown();
+
+        // once the response is in, the next call goes out again
+        mockWebServer.enqueue(new MockResponse().setBody("{}"));
+        sender.post("/decide", "1");
+        assertEquals(2, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void testPostAsync() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setBody("{\"featureFlags\": {\"test-flag\": true}}"));
+        JSONObject result = sender.postAsync("/decide", "1").get(5, TimeUnit.SECONDS);
+        assertEquals("/decide", mockWebServer.takeRequest().getPath());
+        assertTrue(result.getJSONObject("featureFlags").getBoolean("test-flag"));
+    }
+
+    @Test
+    public void testPostAsyncFailure() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+        assertEquals(null, sender.postAsync("/decide", "1").get(5, TimeUnit.SECONDS));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(400));
+        assertEquals(null, sender.postAsync("/decide", "1").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testUndeliverableBatchSpooledAndReplayed() throws Exception {
+        Path spoolDirectory = folder.newFolder("spool").toPath();
+        sender = new HttpSender.Builder(apiKey).host(host).maxRetries(0).initialRetryInterval(Duration.ZERO)
+                .spoolDirectory(spoolDirectory).build();
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+        assertFalse(sender.send(Collections.singletonList(new JSONObject("{'key': 'spooled'}"))));
+        mockWebServer.takeRequest();
+        sender.close();
+
+        // a restarted sender picks the spooled batch up and sends it
+        mockWebServer.enqueue(new MockResponse());
+        sender = new HttpSender.Builder(apiKey).host(host).spoolDirectory(spoolDirectory).build();
+        RecordedRequest replayed = mockWebServer.takeRequest(5, TimeUnit.SECONDS);
+        assertThatJson("{\"api_key\":\"UNIT_TESTING_API_KEY\",\"batch\":[{\"key\":\"spooled\"}]}")
+                .isEqualTo(replayed.getBody().readUtf8());
+        for (int i = 0; i < 50 && segments(spoolDirectory) > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, segments(spoolDirectory));
+    }
+
+    @Test
+    public void testSpoolKeepsEventsForTheNextSender() throws Exception {
+        Path spoolDirectory = folder.newFolder("spool").toPath();
+        sender = new HttpSender.Builder(apiKey).host(host).spoolDirectory(spoolDirectory).build();
+        PostHogEvent event = new PostHogEvent(UUID.randomUUID(), Instant.now(), "test id", "shutdown",
+                Collections.emptyMap());
+        assertTrue(sender.spool(Collections.singletonList(event)));
+        assertEquals(0, mockWebServer.getRequestCount());
+        sender.close();
+
+        mockWebServer.enqueue(new MockResponse());
+        sender = new HttpSender.Builder(apiKey).host(host).spoolDirectory(spoolDirectory).build();
+        JSONObject replayed = new JSONObject(mockWebServer.takeRequest(5, TimeUnit.SECONDS).getBody().readUtf8());
+        assertEquals("shutdown", replayed.getJSONArray("batch").getJSONObject(0).getString("event"));
+    }
+
+    @Test
+    public void testFailedReplayKeepsSpoolOrder() throws Exception {
+        Path spoolDirectory = folder.newFolder("spool").toPath();
+        sender = new HttpSender.Builder(apiKey).host(host).maxRetries(0).spoolDirectory(spoolDirectory).build();
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+        assertFalse(sender.send(Collections.singletonList(new JSONObject("{'key': 'first'}"))));
+        assertFalse(sender.send(Collections.singletonList(new JSONObject("{'key': 'second'}"))));
+        mockWebServer.takeRequest();
+        mockWebServer.takeRequest();
+        sender.close();
+
+        // the replay on start fails, the batch stays at the head of the spool
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+        sender = new HttpSender.Builder(apiKey).host(host).maxRetries(0).spoolDirectory(spoolDirectory).build();
+        assertThatJson("{\"api_key\":\"UNIT_TESTING_API_KEY\",\"batch\":[{\"key\":\"first\"}]}")
+                .isEqualTo(mockWebServer.takeRequest(5, TimeUnit.SECONDS).getBody().readUtf8());
+        Thread.sleep(100); // let the failed replay finish
+
+        // the next successful send replays the spool in its original order
+        mockWebServer.enqueue(new MockResponse());
+        mockWebServer.enqueue(new MockResponse());
+        mockWebServer.enqueue(new MockResponse());
+        assertTrue(sender.send(Collections.singletonList(new JSONObject("{'key': 'live'}"))));
+        mockWebServer.takeRequest();
+        assertThatJson("{\"api_key\":\"UNIT_TESTING_API_KEY\",\"batch\":[{\"key\":\"first\"}]}")
+                .isEqualTo(mockWebServer.takeRequest(5, TimeUnit.SECONDS).getBody().readUtf8());
+        assertThatJson("{\"api_key\":\"UNIT_TESTING_API_KEY\",\"batch\":[{\"key\":\"second\"}]}")
+                .isEqualTo(mockWebServer.takeRequest(5, TimeUnit.SECONDS).getBody().readUtf8());
+    }
+
+    @Test
+    public void testCloseReleasesOwnClientsOnly() throws InterruptedException {
+        OkHttpClient supplied = new OkHttpClient();
+        sender = new HttpSender.Builder(apiKey).host(host).client(supplied).build();
+        sender.close();
+        assertFalse(supplied.dispatcher().executorService().isShutdown());
+        supplied.dispatcher().executorService().shutdown();
+
+        sender = new HttpSender.Builder(apiKey).host(host).maxRetries(1).build();
+        sender.close();
+        // the dispatcher rejects the call, no request is made
+        assertFalse(sender.send(Collections.singletonList(new JSONObject("{'key': 'value'}"))));
+        assertEquals(0, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void testCircuitBreakerShortCircuitsRequests() throws InterruptedException {
+        sender = new HttpSender.Builder(apiKey).host(host).maxRetries(1).initialRetryInterval(Duration.ZERO)
+                .circuitBreakerFailureThreshold(2).circuitBreakerProbeInterval(Duration.ofMinutes(1)).build();
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        assertFalse(sender.send(Collections.singletonList(new JSONObject("{'key': 'value'}"))));
+        assertFalse(sender.isAvailable());
+
+        // neither batches nor flag lookups reach the server while open
+        assertFalse(sender.send(Collections.singletonList(new JSONObject("{'key': 'value'}"))));
+        assertEquals(null, sender.post("/decide", "1"));
+        assertEquals(null, sender.getFeatureFlagDefinitions("phx_test"));
+        assertEquals(2, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void testRetryWaitsForCircuitBreakerProbe() throws InterruptedException {
+        sender = new HttpSender.Builder(apiKey).host(host).maxRetries(1).initialRetryInterval(Duration.ZERO)
+                .circuitBreakerFailureThreshold(1).circuitBreakerProbeInterval(Duration.ofMillis(300)).build();
+        mockWebServer.enqueue(new MockResponse().setResponseCode(500));
+        mockWebServer.enqueue(new MockResponse());
+        long start = System.nanoTime();
+
+        // the retry comes due while the breaker is open, it is sent as the probe
+        assertTrue(sender.send(Collections.singletonList(new JSONObject("{'key': 'value'}"))));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 300);
+        assertEquals(2, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void testRetriesRateLimitedBatchAfterRetryAfter() throws InterruptedException {
+        sender = new HttpSender.Builder(apiKey).host(host).maxRetries(1).initialRetryInterval(Duration.ZERO)
+                .build();
+        mockWebServer.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"));
+        mockWebServer.enqueue(new MockResponse());
+        long start = System.nanoTime();
+        Boolean success = sender.send(Collections.singletonList(new JSONObject("{'key': 'value'}")));
+
+        assertTrue(success);
+        assertEquals(2, mockWebServer.getRequestCount());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1000);
+    }
+
+    @Test
+    public void testPushbackPausesSending() throws Exception {
+        sender = new HttpSender.Builder(apiKey).host(host).maxRetries(0).build();
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "60"));
+        sender.sendAsync(Collections.singletonList(new JSONObject("{'key': 'value'}"))).get(5, TimeUnit.SECONDS);
+
+        assertFalse(sender.isAvailable());
+    }
+
+    @Test
+    public void testRetryAfterParsing() {
+        okhttp3.Request request = new okhttp3.Request.Builder().url(host).build();
+        okhttp3.Response.Builder response = new okhttp3.Response.Builder().request(request)
+                .protocol(okhttp3.Protocol.HTTP_1_1).code(429).message("Too Many Requests");
 
+        assertEquals(0, HttpSender.retryAfterMillis(response.build()));
+        assertEquals(0, HttpSender.retryAfterMillis(response.header("Retry-After", "soon").build()));
+        assertEquals(120000, HttpSender.retryAfterMillis(response.header("Retry-After", "120").build()));
+        assertEquals(600000, HttpSender.retryAfterMillis(response.header("Retry-After", "86400").build()));
+        String inAMinute = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(61));
+        long millis = HttpSender.retryAfterMillis(response.header("Retry-After", inAMinute).build());
+        assertTrue(millis > 50000 && millis <= 61000);
+    }
+
+    private static OkHttpClient taggedClient(String tag) {
+        return new OkHttpClient.Builder()
+                .addInterceptor(chain -> chain.proceed(chain.request().newBuilder().header("X-Client", tag).build()))
+                .build();
+    }
+
+    @Test
+    public void testSuppliedClientsUsedForBatchesAndFlags() throws InterruptedException {
+        sender = new HttpSender.Builder(apiKey).host(host).client(taggedClient("batches"))
+                .flagsClient(taggedClient("flags")).build();
+        mockWebServer.enqueue(new MockResponse());
+        mockWebServer.enqueue(new MockResponse().setBody("{}"));
+        sender.send(Collections.singletonList(new JSONObject("{'key': 'value'}")));
+        sender.post("/decide", "1");
+
+        assertEquals("batches", mockWebServer.takeRequest().getHeader("X-Client"));
+        assertEquals("flags", mockWebServer.takeRequest().getHeader("X-Client"));
+    }
+
+    @Test
+    public void testProxyUsedForBatchesAndFlags() throws InterruptedException {
+        sender = new HttpSender.Builder(apiKey).host("http://posthog.invalid").proxy(mockWebServer.toProxyAddress())
+                .build();
+        mockWebServer.enqueue(new MockResponse());
+        mockWebServer.enqueue(new MockResponse().setBody("{}"));
+        assertTrue(sender.send(Collections.singletonList(new JSONObject("{'key': 'value'}"))));
+        sender.post("/decide", "1");
+
+        assertEquals("POST http://posthog.invalid/batch HTTP/1.1", mockWebServer.takeRequest().getRequestLine());
+        assertTrue(mockWebServer.takeRequest().getRequestLine().startsWith("POST http://posthog.invalid/decide"));
+    }
+
+    @Test
+    public void testFlagsUseCopyOfSuppliedClient() throws InterruptedException {
+        sender = new HttpSender.Builder(apiKey).host(host).client(taggedClient("batches")).build();
+        mockWebServer.enqueue(new MockResponse().setBody("{}"));
+        sender.post("/decide", "1");
+
+        // interceptors of the supplied client apply to flag requests too
+        assertEquals("batches", mockWebServer.takeRequest().getHeader("X-Client"));
+    }
+
+    @Test
+    public void testRecordsMetrics() {
+        InMemoryPostHogMetrics metrics = new InMemoryPostHogMetrics();
+        sender = new HttpSender.Builder(apiKey).host(host).maxRetries(1).metrics(metrics).build();
+        mockWebServer.enqueue(new MockResponse().setResponseCode(503));
+        mockWebServer.enqueue(new MockResponse());
+        List<JSONObject> input = new ArrayList<JSONObject>();
+        input.add(new JSONObject("{'key': 'value'}"));
+        input.add(new JSONObject("{'key': 'value'}"));
+        assertTrue(sender.send(input));
+
+        assertEquals(1, metrics.batchesSent());
+        assertEquals(2, metrics.eventsSent());
+        assertEquals(1, metrics.retries());
+        assertEquals(1, metrics.requestErrors());
+        assertEquals(2, metrics.requestNanos().count());
+        assertEquals(1, metrics.deliveryNanos().count());
+        assertTrue(metrics.batchBytes().max() > 0);
+    }
+
+    @Test
+    public void testCallsRunOnSuppliedExecutor() throws InterruptedException {
+        AtomicInteger created = new AtomicInteger();
+        ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            created.incrementAndGet();
+            return new Thread(runnable, "custom sender");
+        });
+        sender = new HttpSender.Builder(apiKey).host(host).executor(executor).build();
+        mockWebServer.enqueue(new MockResponse());
+        assertTrue(sender.send(Collections.singletonList(new JSONObject("{'key': 'value'}"))));
+        assertTrue(created.get() > 0);
+
+        // closing the sender leaves a supplied executor running
+        sender.close();
+        assertFalse(executor.isShutdown());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testCloseSpoolsPendingRetries() throws Exception {
+        Path spoolDirectory = folder.newFolder("spool").toPath();
+        InMemoryPostHogMetrics metrics = new InMemoryPostHogMetrics();
+        sender = new HttpSender.Builder(apiKey).host(host).maxRetries(1).spoolDirectory(spoolDirectory)
+                .metrics(metrics).build();
+        mockWebServer.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "600"));
+        CompletableFuture<Boolean> result = sender
+                .sendAsync(Collections.singletonList(new JSONObject("{'key': 'value'}")));
+        for (int i = 0; i < 50 && metrics.retries() == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, metrics.retries());
+
+        // the batch is not held back for the ten minutes the server asked for
+        sender.close();
+        assertFalse(result.get(5, TimeUnit.SECONDS));
+        assertEquals(1, mockWebServer.getRequestCount());
+        assertEquals(1, segments(spoolDirectory));
+    }
 }
@@ -0,0 +1,42 @@
+package com.posthog.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class IdGeneratorTest {
+
+    @Test
+    public void testUuidV7Layout() {
+        long before = System.currentTimeMillis();
+        UUID uuid = IdGenerator.UUID_V7.generate();
+        long after = System.currentTimeMillis();
+
+        assertEquals(7, uuid.version());
+        assertEquals(2, uuid.variant());
+        long millis = uuid.getMostSignificantBits() >>> 16;
+        assertTrue(millis >= before && millis <= after);
+    }
+
+    @Test
+    public void testUuidV7OrderedByTime() throws InterruptedException {
+        UUID first = IdGenerator.UUID_V7.generate();
+        Thread.sleep(2);
+        UUID second = IdGenerator.UUID_V7.generate();
+        // the string form is what gets indexed
+        assertTrue(first.toString().compareTo(second.toString()) < 0);
+    }
+
+    @Test
+    public void testUuidV7Unique() {
+        Set<UUID> uuids = new HashSet<UUID>();
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(uuids.add(IdGenerator.UUID_V7.generate()));
+        }
+    }
+}
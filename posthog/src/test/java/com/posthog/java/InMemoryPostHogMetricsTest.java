@@ -0,0 +1,49 @@
+package com.posthog.java;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class InMemoryPostHogMetricsTest {
+
+    @Test
+    public void testHistogramPercentiles() {
+        InMemoryPostHogMetrics.Histogram histogram = new InMemoryPostHogMetrics().batchSize();
+        assertEquals(0, histogram.percentile(99));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(50.5, histogram.mean(), 0.001);
+        assertEquals(100, histogram.max());
+        // 50 falls in the 32..63 bucket
+        assertEquals(63, histogram.percentile(50));
+        // capped at the largest recorded value
+        assertEquals(100, histogram.percentile(99));
+        assertEquals(1, histogram.percentile(0));
+    }
+
+    @Test
+    public void testHistogramZeroAndNegative() {
+        InMemoryPostHogMetrics.Histogram histogram = new InMemoryPostHogMetrics().batchSize();
+        histogram.record(0);
+        histogram.record(-5);
+        assertEquals(2, histogram.count());
+        assertEquals(0, histogram.percentile(100));
+    }
+
+    @Test
+    public void testCountsRequestErrorsAndLocalEvaluations() {
+        InMemoryPostHogMetrics metrics = new InMemoryPostHogMetrics();
+        metrics.requestCompleted("/batch", 200, 10);
+        metrics.requestCompleted("/batch", 500, 10);
+        metrics.requestCompleted("/decide", -1, 10);
+        metrics.featureFlagRequested(true, 5);
+        metrics.featureFlagRequested(false, 50);
+
+        assertEquals(2, metrics.requestErrors());
+        assertEquals(3, metrics.requestNanos().count());
+        assertEquals(1, metrics.localFlagEvaluations());
+        assertEquals(2, metrics.featureFlagNanos().count());
+    }
+}
@@ -0,0 +1,301 @@
+package com.posthog.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueueManagerTest {
+    private TestSender sender;
+
+    @Before
+    public void setUp() {
+        sender = new TestSender();
+    }
+
+    private JSONObject event(int i) {
+        return new JSONObject().put("distinct_id", "id" + i).put("event", "event " + i);
+    }
+
+    @Test
+    public void testDropNewestWhenFull() {
+        QueueManager queueManager = new QueueManager.Builder(sender).capacity(2)
+                .overflowPolicy(OverflowPolicy.DROP_NEWEST).build();
+        assertTrue(queueManager.add(event(1)));
+        assertTrue(queueManager.add(event(2)));
+        assertFalse(queueManager.add(event(3)));
+        assertEquals(1, queueManager.droppedEvents());
+
+        queueManager.sendAll();
+        assertEquals(1, sender.calls.size());
+        assertEquals("event 1", sender.calls.get(0).get(0).getString("event"));
+        assertEquals("event 2", sender.calls.get(0).get(1).getString("event"));
+    }
+
+    @Test
+    public void testDropOldestWhenFull() {
+        QueueManager queueManager = new QueueManager.Builder(sender).capacity(2)
+                .overflowPolicy(OverflowPolicy.DROP_OLDEST).build();
+        assertTrue(queueManager.add(event(1)));
+        assertTrue(queueManager.add(event(2)));
+        assertTrue(queueManager.add(event(3)));
+        assertEquals(1, queueManager.droppedEvents());
+
+        queueManager.sendAll();
+        assertEquals(1, sender.calls.size());
+        assertEquals("event 2", sender.calls.get(0).get(0).getString("event"));
+        assertEquals("event 3", sender.calls.get(0).get(1).getString("event"));
+    }
+
+    @Test
+    public void testBlockDropsAfterTimeout() {
+        QueueManager queueManager = new QueueManager.Builder(sender).capacity(2)
+                .overflowPolicy(OverflowPolicy.BLOCK).blockTimeout(Duration.ofMillis(10)).build();
+        assertTrue(queueManager.add(event(1)));
+        assertTrue(queueManager.add(event(2)));
+        assertFalse(queueManager.add(event(3)));
+        assertEquals(1, queueManager.droppedEvents());
+    }
+
+    @Test
+    public void testBlockWaitsForRoom() throws InterruptedException {
+        QueueManager queueManager = new QueueManager.Builder(sender).capacity(2).maxQueueSize(1)
+                .overflowPolicy(OverflowPolicy.BLOCK).blockTimeout(Duration.ofSeconds(10)).build();
+        assertTrue(queueManager.add(event(1)));
+        assertTrue(queueManager.add(event(2)));
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queueManager.sendAll();
+        });
+        consumer.start();
+        assertTrue(queueManager.add(event(3)));
+        consumer.join();
+        assertEquals(0, queueManager.droppedEvents());
+    }
+
+    @Test
+    public void testCallerRunsSendsOnCallingThread() {
+        QueueManager queueManager = new QueueManager.Builder(sender).capacity(2)
+                .overflowPolicy(OverflowPolicy.CALLER_RUNS).build();
+        assertTrue(queueManager.add(event(1)));
+        assertTrue(queueManager.add(event(2)));
+        assertTrue(queueManager.add(event(3)));
+        assertEquals(0, queueManager.droppedEvents());
+        assertEquals(0, queueManager.queueSize());
+
+        assertEquals(1, sender.calls.size());
+        assertEquals(3, sender.calls.get(0).size());
+        assertEquals("event 3", sender.calls.get(0).get(2).getString("event"));
+    }
+
+    @Test
+    public void testWorkerSurvivesSenderException() throws InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+        TestSender failingOnce = new TestSender() {
+            @Override
+            public Boolean send(List<JSONObject> events) {
+                if (attempts.getAndIncrement() == 0) {
+                    throw new IllegalStateException("broken sender");
+                }
+                return super.send(events);
+            }
+        };
+        QueueManager queueManager = new QueueManager.Builder(failingOnce).maxQueueSize(1)
+                .maxTimeInQueue(Duration.ofMillis(1)).build();
+        Thread thread = new Thread(queueManager);
+        thread.start();
+        assertTrue(queueManager.add(event(1)));
+        Thread.sleep(50);
+        assertTrue(queueManager.add(event(2)));
+        queueManager.stop();
+        thread.join();
+        assertEquals(1, failingOnce.calls.size());
+        assertEquals("event 2", failingOnce.calls.get(0).get(0).getString("event"));
+    }
+
+    @Test
+    public void testSenderWorkersKeepPerUserOrder() throws InterruptedException {
+        QueueManager queueManager = new QueueManager.Builder(sender).senderWorkers(4).maxQueueSize(5)
+                .maxTimeInQueue(Duration.ofMillis(10)).build();
+        Thread queueManagerThread = new Thread(queueManager);
+        queueManagerThread.start();
+        for (int i = 0; i < 200; i++) {
+            queueManager.add(new JSONObject().put("distinct_id", "user" + (i % 10)).put("seq", i));
+        }
+        queueManager.stop();
+        queueManagerThread.join();
+
+        Map<String, Integer> lastSeqPerUser = new HashMap<String, Integer>();
+        int delivered = 0;
+        synchronized (sender.calls) {
+            for (List<JSONObject> batch : sender.calls) {
+                assertTrue(batch.size() <= 5);
+                for (JSONObject json : batch) {
+                    String distinctId = json.getString("distinct_id");
+                    int seq = json.getInt("seq");
+                    Integer previous = lastSeqPerUser.put(distinctId, seq);
+                    assertTrue(previous == null || previous < seq);
+                    delivered++;
+                }
+            }
+        }
+        assertEquals(200, delivered);
+        assertEquals(10, lastSeqPerUser.size());
+    }
+
+    @Test
+    public void testEventsStayQueuedWhileSenderUnavailable() throws InterruptedException {
+        sender.available = false;
+        QueueManager queueManager = new QueueManager.Builder(sender).capacity(2).maxQueueSize(1)
+                .maxTimeInQueue(Duration.ofMillis(1)).overflowPolicy(OverflowPolicy.DROP_NEWEST).build();
+        Thread thread = new Thread(queueManager);
+        thread.start();
+        assertTrue(queueManager.add(event(1)));
+        assertTrue(queueManager.add(event(2)));
+        assertFalse(queueManager.add(event(3)));
+        Thread.sleep(50);
+        assertEquals(0, sender.calls.size());
+        assertEquals(2, queueManager.queueSize());
+
+        sender.available = true;
+        queueManager.stop();
+        thread.join();
+        assertEquals(2, sender.calls.size());
+        assertEquals(1, queueManager.droppedEvents());
+    }
+
+    @Test
+    public void testSkipsEventsThatFailToConvertToJson() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(null, "no key");
+        QueueManager queueManager = new QueueManager.Builder(sender).build();
+        assertTrue(queueManager.add(new PostHogEvent(UUID.randomUUID(), Instant.now(), "id1", "broken", properties)));
+        assertTrue(queueManager.add(event(2)));
+
+        queueManager.sendAll();
+        assertEquals(1, sender.calls.size());
+        assertEquals(1, sender.calls.get(0).size());
+        assertEquals("event 2", sender.calls.get(0).get(0).getString("event"));
+    }
+
+    @Test
+    public void testStopGivesUpOnSenderAfterShutdownTimeout() throws InterruptedException {
+        List<PostHogEvent> spooled = new CopyOnWriteArrayList<PostHogEvent>();
+        TestSender neverCompletes = new TestSender() {
+            @Override
+            public CompletableFuture<Boolean> sendAsync(List<JSONObject> events) {
+                calls.add(events);
+                return new CompletableFuture<Boolean>();
+            }
+
+            @Override
+            public boolean spool(List<PostHogEvent> events) {
+                return spooled.addAll(events);
+            }
+        };
+        QueueManager queueManager = new QueueManager.Builder(neverCompletes).maxQueueSize(1)
+                .maxTimeInQueue(Duration.ofMillis(1)).maxInFlightBatches(1)
+                .shutdownTimeout(Duration.ofMillis(200)).build();
+        Thread thread = new Thread(queueManager);
+        thread.start();
+        assertTrue(queueManager.add(event(1)));
+        assertTrue(queueManager.add(event(2)));
+        Thread.sleep(50);
+        queueManager.stop();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals(1, neverCompletes.calls.size());
+        // what the sender never took is kept rather than dropped
+        assertEquals(1, spooled.size());
+        assertEquals("event 2", spooled.get(0).getEvent());
+    }
+
+    @Test
+    public void testRecordsMetrics() {
+        InMemoryPostHogMetrics metrics = new InMemoryPostHogMetrics();
+        QueueManager queueManager = new QueueManager.Builder(sender).capacity(2).metrics(metrics).build();
+        assertTrue(queueManager.add(event(1)));
+        assertTrue(queueManager.add(event(2)));
+        assertFalse(queueManager.add(event(3)));
+        queueManager.sendAll();
+
+        assertEquals(2, metrics.eventsEnqueued());
+        assertEquals(1, metrics.eventsDropped());
+        assertEquals(1, metrics.batchSize().count());
+        assertEquals(2, metrics.batchSize().max());
+        assertEquals(0, metrics.queueDepth());
+        assertEquals(2, metrics.maxQueueDepth());
+    }
+
+    @Test
+    public void testStripedQueueDeliversEventsOfAllThreads() throws InterruptedException {
+        QueueManager queueManager = new QueueManager.Builder(sender).stripes(4).maxQueueSize(10)
+                .maxTimeInQueue(Duration.ofMillis(10)).build();
+        Thread queueManagerThread = new Thread(queueManager);
+        queueManagerThread.start();
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int p = 0; p < 4; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    queueManager.add(new JSONObject().put("distinct_id", "user" + producer).put("seq", i));
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        queueManager.stop();
+        queueManagerThread.join();
+
+        Map<String, Integer> lastSeqPerUser = new HashMap<String, Integer>();
+        int delivered = 0;
+        synchronized (sender.calls) {
+            for (List<JSONObject> batch : sender.calls) {
+                assertTrue(batch.size() <= 10);
+                for (JSONObject json : batch) {
+                    // each user is captured from one thread, whose stripe has room
+                    Integer previous = lastSeqPerUser.put(json.getString("distinct_id"), json.getInt("seq"));
+                    assertTrue(previous == null || previous < json.getInt("seq"));
+                    delivered++;
+                }
+            }
+        }
+        assertEquals(400, delivered);
+    }
+
+    @Test
+    public void testWorkerThreadsFromThreadFactory() throws InterruptedException {
+        AtomicInteger created = new AtomicInteger();
+        QueueManager queueManager = new QueueManager.Builder(sender).senderWorkers(3).threadFactory(runnable -> {
+            created.incrementAndGet();
+            return new Thread(runnable, "custom worker");
+        }).build();
+        Thread queueManagerThread = new Thread(queueManager);
+        queueManagerThread.start();
+        queueManager.stop();
+        queueManagerThread.join();
+        // the thread calling run() works the first partition
+        assertEquals(2, created.get());
+    }
+}
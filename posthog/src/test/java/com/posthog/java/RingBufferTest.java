@@ -0,0 +1,97 @@
+package com.posthog.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+    @Test
+    public void testCapacityRoundsUpToPowerOfTwo() {
+        assertEquals(8, new RingBuffer<String>(5).capacity());
+        assertEquals(8, new RingBuffer<String>(8).capacity());
+        assertEquals(2, new RingBuffer<String>(1).capacity());
+    }
+
+    @Test
+    public void testOfferAndPollInOrder() {
+        RingBuffer<String> buffer = new RingBuffer<String>(4);
+        assertTrue(buffer.offer("a"));
+        assertTrue(buffer.offer("b"));
+        assertEquals(2, buffer.size());
+        assertEquals("a", buffer.poll());
+        assertEquals("b", buffer.poll());
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testOfferFailsWhenFull() {
+        RingBuffer<String> buffer = new RingBuffer<String>(2);
+        assertTrue(buffer.offer("a"));
+        assertTrue(buffer.offer("b"));
+        assertFalse(buffer.offer("c"));
+        assertEquals("a", buffer.poll());
+        // slot is reusable once consumed
+        assertTrue(buffer.offer("c"));
+        assertEquals(2, buffer.size());
+    }
+
+    @Test
+    public void testDrainToRespectsMaxElements() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(16);
+        for (int i = 0; i < 10; i++) {
+            buffer.offer(i);
+        }
+        List<Integer> batch = new ArrayList<Integer>();
+        assertEquals(4, buffer.drainTo(batch, 4));
+        assertEquals(4, batch.size());
+        assertEquals(Integer.valueOf(0), batch.get(0));
+        assertEquals(6, buffer.size());
+    }
+
+    @Test
+    public void testConcurrentProducersLoseNothing() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 10000;
+        final RingBuffer<Integer> buffer = new RingBuffer<Integer>(1024);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    while (!buffer.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+
+        long consumed = 0;
+        List<Integer> batch = new ArrayList<Integer>();
+        while (consumed < producers * perProducer) {
+            batch.clear();
+            consumed += buffer.drainTo(batch, 50);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(producers * perProducer, consumed);
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -0,0 +1,162 @@
+package com.posthog.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class StripedRingBufferTest {
+
+    @Test
+    public void testStripesRoundUpAndShareCapacity() {
+        StripedRingBuffer<String> buffer = new StripedRingBuffer<String>(64, 3);
+        assertEquals(4, buffer.stripes());
+        assertEquals(64, buffer.capacity());
+        assertEquals(1, new StripedRingBuffer<String>(64, 1).stripes());
+    }
+
+    @Test
+    public void testSizeAtLeastCountsAllStripes() {
+        StripedRingBuffer<Integer> buffer = new StripedRingBuffer<Integer>(64, 4);
+        // a single producer fills only its own stripe
+        buffer.offer(1);
+        buffer.offer(2);
+        assertFalse(buffer.sizeAtLeast(8));
+        assertTrue(buffer.sizeAtLeast(2));
+    }
+
+    @Test
+    public void testOfferFallsBackToOtherStripesWhenOwnIsFull() {
+        StripedRingBuffer<Integer> buffer = new StripedRingBuffer<Integer>(8, 4);
+        // all offers come from this thread, its own stripe only holds 2
+        for (int i = 0; i < 8; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(8));
+        assertEquals(8, buffer.size());
+
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(8, buffer.drainTo(drained, 100));
+        assertTrue(buffer.isEmpty());
+        assertEquals(8, drained.size());
+    }
+
+    @Test
+    public void testDrainToRespectsMaxElementsAcrossStripes() {
+        StripedRingBuffer<Integer> buffer = new StripedRingBuffer<Integer>(16, 4);
+        for (int i = 0; i < 10; i++) {
+            buffer.offer(i);
+        }
+        List<Integer> batch = new ArrayList<Integer>();
+        assertEquals(3, buffer.drainTo(batch, 3));
+        assertEquals(7, buffer.size());
+        assertEquals(7, buffer.drainTo(batch, 100));
+    }
+
+    @Test
+    public void testConcurrentProducersLoseNothing() throws InterruptedException {
+        final int producers = 8;
+        final int perProducer = 10000;
+        final StripedRingBuffer<int[]> buffer = new StripedRingBuffer<int[]>(1024, 4);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    while (!buffer.offer(new int[] { producer, i })) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+
+        Map<Integer, Integer> countPerProducer = new HashMap<Integer, Integer>();
+        long consumed = 0;
+        List<int[]> batch = new ArrayList<int[]>();
+        while (consumed < producers * perProducer) {
+            batch.clear();
+            consumed += buffer.drainTo(batch, 50);
+            for (int[] element : batch) {
+                countPerProducer.merge(element[0], 1, Integer::sum);
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(producers * perProducer, consumed);
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer, (int) countPerProducer.get(p));
+        }
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testProducersMayTakeToo() throws InterruptedException {
+        // overflow policies poll and drain from the producing threads while the
+        // consumer drains
+        StripedRingBuffer<Integer> buffer = new StripedRingBuffer<Integer>(64, 4);
+        int threadCount = 4;
+        int perThread = 20000;
+        AtomicInteger taken = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                List<Integer> batch = new ArrayList<Integer>();
+                for (int i = 0; i < perThread; i++) {
+                    while (!buffer.offer(i)) {
+                        if (buffer.poll() != null) {
+                            taken.incrementAndGet();
+                        }
+                    }
+                    if (i % 8 == 0) {
+                        batch.clear();
+                        taken.addAndGet(buffer.drainTo(batch, 4));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        List<Integer> batch = new ArrayList<Integer>();
+        while (taken.get() < threadCount * perThread) {
+            batch.clear();
+            taken.addAndGet(buffer.drainTo(batch, 16));
+            boolean producing = false;
+            for (Thread thread : threads) {
+                producing |= thread.isAlive();
+            }
+            if (!producing && buffer.isEmpty()) {
+                break;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threadCount * perThread, taken.get());
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -1,23 +1,34 @@
 package com.posthog.java;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONObject;
 
 public class TestSender implements Sender {
 
-    public List<List<JSONObject>> calls = new ArrayList<List<JSONObject>>();
+    public List<List<JSONObject>> calls = Collections.synchronizedList(new ArrayList<List<JSONObject>>());
+    // names of the threads send was called on
+    public List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+    public AtomicInteger postCalls = new AtomicInteger();
+    // returned by getFeatureFlagDefinitions
+    public JSONObject featureFlagDefinitions;
+    // returned by isAvailable
+    public volatile boolean available = true;
 
     TestSender() {
     }
 
     public Boolean send(List<JSONObject> events) {
         calls.add(events);
+        threads.add(Thread.currentThread().getName());
         return true;
     }
 
     public JSONObject post(String route, String distinctId) {
+        postCalls.incrementAndGet();
         String response = "{\n" + //
                 "    \"config\": {\n" + //
                 "        \"enable_collect_everything\": true\n" + //
@@ -45,4 +56,14 @@ public class TestSender implements Sender {
 
         return new JSONObject(response);
     }
+
+    @Override
+    public JSONObject getFeatureFlagDefinitions(String personalApiKey) {
+        return featureFlagDefinitions;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return available;
+    }
 }
@@ -0,0 +1,42 @@
+package com.posthog.java;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Instant;
+
+import org.junit.Test;
+
+public class TimestampFormatterTest {
+
+    private static void assertFormatsLikeToString(Instant instant) {
+        assertEquals(instant.toString(), TimestampFormatter.format(instant));
+    }
+
+    @Test
+    public void testFractionLikeInstantToString() {
+        assertFormatsLikeToString(Instant.parse("2020-02-02T02:02:02Z"));
+        assertFormatsLikeToString(Instant.parse("2020-02-02T02:02:02.100Z"));
+        assertFormatsLikeToString(Instant.parse("2020-02-02T02:02:02.012Z"));
+        assertFormatsLikeToString(Instant.parse("2020-02-02T02:02:02.000400Z"));
+        assertFormatsLikeToString(Instant.parse("2020-02-02T02:02:02.123456789Z"));
+        assertFormatsLikeToString(Instant.parse("2020-02-02T02:02:02.000000001Z"));
+    }
+
+    @Test
+    public void testSecondChanges() {
+        // alternating seconds replace the cached prefix each time
+        for (int i = 0; i < 4; i++) {
+            assertFormatsLikeToString(Instant.parse("2020-02-02T02:02:0" + i + ".5Z"));
+            assertFormatsLikeToString(Instant.parse("2021-12-31T23:59:59.5Z"));
+        }
+        assertFormatsLikeToString(Instant.parse("2020-02-02T02:03:00Z"));
+    }
+
+    @Test
+    public void testOutsideCachedRange() {
+        assertFormatsLikeToString(Instant.parse("1969-12-31T23:59:59.999Z"));
+        assertFormatsLikeToString(Instant.ofEpochSecond(253402300800L));
+        assertFormatsLikeToString(Instant.EPOCH);
+        assertFormatsLikeToString(Instant.now());
+    }
+}